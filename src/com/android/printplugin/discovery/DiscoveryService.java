@@ -19,6 +19,7 @@ import java.lang.ref.WeakReference;
 
 import android.app.Service;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
@@ -28,7 +29,9 @@ import android.text.TextUtils;
 
 import android.util.Log;
 import com.hp.android.printplugin.support.PrintServiceStrings;
+import com.android.printplugin.discoveryservice.DiscoveryChannels;
 import com.android.printplugin.discoveryservice.LocalPrinterDiscoveryTask;
+import com.android.printplugin.discoveryservice.VendorIntentTable;
 
 
 public class DiscoveryService extends Service {
@@ -70,7 +73,7 @@ public class DiscoveryService extends Service {
                 } else if (msg.what == DISCOVERY_SERVICE_MSG__SERVICE_UNBIND) {
                     service.queueStopRequest();
                 } else if (!TextUtils.isEmpty(action) && action.equals(PrintServiceStrings.ACTION_PRINT_SERVICE_START_DISCOVERY)) {
-                     new LocalPrinterDiscoveryTask(mServiceRef.get(), Message.obtain(msg)).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                     new LocalPrinterDiscoveryTask(service, Message.obtain(msg), service.mVendorIntents).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 }
             }
         }
@@ -81,6 +84,9 @@ public class DiscoveryService extends Service {
 
     private int mStartID = 0;
 
+    // Shared by the discovery tasks, rebuilt when the resources may change.
+    private volatile VendorIntentTable mVendorIntents = null;
+
     private Runnable mQuitRunnable = new Runnable() {
         @Override
         public void run() {
@@ -101,11 +107,22 @@ public class DiscoveryService extends Service {
     public void onCreate() {
         mServiceHandler = new ServiceHandler(this);
         mServiceMessenger = new Messenger(mServiceHandler);
+        mVendorIntents = VendorIntentTable.build(this);
+        // The discovery channels stay open between discoveries until the
+        // service stops, QUIT_DELAY after its last client unbinds.
+        DiscoveryChannels.getInstance().retain();
         super.onCreate();
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mVendorIntents = VendorIntentTable.build(this);
+    }
+
     @Override
     public void onDestroy() {
+        DiscoveryChannels.getInstance().release();
         super.onDestroy();
     }
 
@@ -0,0 +1,176 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the addresses of a printer by how fast a TCP connection to its
+ * service port is established, in the manner of "Happy Eyeballs" (RFC 8305):
+ * connection attempts are started one after the other, alternating address
+ * families, without waiting for the previous ones to complete.
+ */
+class AddressRanker {
+
+    // Delay between the start of two connection attempts (RFC 8305, section 5).
+    private static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+    private final ExecutorService mAttempts = Executors.newCachedThreadPool();
+    private final int mConnectTimeout;
+
+    /**
+     * @param connectTimeout how long each connection attempt may take, in
+     *            milliseconds.
+     */
+    AddressRanker(int connectTimeout) {
+        mConnectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return the addresses that accepted a connection, fastest first,
+     *         followed by the others in their original order.
+     */
+    InetAddress[] rank(InetAddress[] addresses, final int port) throws InterruptedException {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        List<InetAddress> attemptOrder = interleaveFamilies(addresses);
+        CompletionService<InetAddress> completion = new ExecutorCompletionService<InetAddress>(mAttempts);
+        List<Future<InetAddress>> futures = new ArrayList<Future<InetAddress>>(addresses.length);
+
+        for (int i = 0; i < attemptOrder.size(); i++) {
+            final InetAddress address = attemptOrder.get(i);
+            final long delay = i * CONNECTION_ATTEMPT_DELAY;
+
+            futures.add(completion.submit(new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() throws Exception {
+                    Thread.sleep(delay);
+                    return connect(address, port) ? address : null;
+                }
+            }));
+        }
+        ArrayList<InetAddress> ranked = new ArrayList<InetAddress>(addresses.length);
+        long deadline = SystemClock.elapsedRealtime()
+                + ((attemptOrder.size() - 1) * CONNECTION_ATTEMPT_DELAY) + mConnectTimeout;
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                Future<InetAddress> future = (remaining > 0)
+                        ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+
+                if (future == null) {
+                    break;
+                }
+                InetAddress reached = getQuietly(future);
+
+                if (reached != null) {
+                    ranked.add(reached);
+                }
+            }
+        } finally {
+            for (Future<InetAddress> future : futures) {
+                future.cancel(true);
+            }
+        }
+        for (InetAddress address : addresses) {
+            if (!ranked.contains(address)) {
+                ranked.add(address);
+            }
+        }
+        return ranked.toArray(new InetAddress[ranked.size()]);
+    }
+
+    void shutdown() {
+        mAttempts.shutdownNow();
+    }
+
+    private boolean connect(InetAddress address, int port) {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(address, port), mConnectTimeout);
+            return true;
+        } catch (IOException exc) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException exc) {
+            }
+        }
+    }
+
+    private static InetAddress getQuietly(Future<InetAddress> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException exc) {
+            return null;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /*
+     * Alternates the address families, keeping the order of each, starting
+     * with the family of the first address.
+     */
+    private static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+        boolean firstIsIpv4 = addresses[0] instanceof Inet4Address;
+        ArrayList<InetAddress> first = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> second = new ArrayList<InetAddress>();
+
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet4Address) == firstIsIpv4) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        if (second.isEmpty()) {
+            return first;
+        }
+        ArrayList<InetAddress> interleaved = new ArrayList<InetAddress>(addresses.length);
+
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                interleaved.add(first.get(i));
+            }
+            if (i < second.size()) {
+                interleaved.add(second.get(i));
+            }
+        }
+        return interleaved;
+    }
+}
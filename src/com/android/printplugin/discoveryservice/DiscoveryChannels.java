@@ -0,0 +1,334 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Query channels shared by the discovery sessions, one per network interface,
+ * so that a discovery does not have to set up its sockets first. Each channel
+ * is reference counted: it stays open while sessions use it, and while the
+ * discovery service keeps the channels retained, see {@link #retain()}. The
+ * datagrams received on a channel are handed to every session attached to it.
+ */
+public final class DiscoveryChannels {
+    private static final String TAG = DiscoveryChannels.class.getSimpleName();
+
+    // Key of the channel sending through the interface the system picks.
+    private static final String DEFAULT_INTERFACE = "";
+
+    // How long a channel stops reading when the buffers of a session are all
+    // being parsed.
+    private static final int BUFFER_WAIT = 10;
+
+    interface Receiver {
+        /**
+         * Called on the event loop with a datagram received on the channel.
+         * Takes ownership of the packet, which comes from the buffers the
+         * receiver was attached with and must go back to them.
+         */
+        void onPacket(DatagramPacket packet);
+    }
+
+    private static DiscoveryChannels sInstance = null;
+
+    // Guarded by this.
+    private final HashMap<String, Channel> mChannels = new HashMap<String, Channel>();
+    private int mRetainers = 0;
+
+    private DiscoveryChannels() {
+    }
+
+    public static synchronized DiscoveryChannels getInstance() {
+        if (sInstance == null) {
+            sInstance = new DiscoveryChannels();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Keeps the channels open once no session uses them, until
+     * {@link #release()} is called as many times.
+     */
+    public synchronized void retain() {
+        mRetainers++;
+    }
+
+    /**
+     * Closes the channels no session uses, unless they are retained
+     * elsewhere.
+     */
+    public synchronized void release() {
+        if ((mRetainers == 0) || (--mRetainers > 0)) {
+            return;
+        }
+        Iterator<Channel> iterator = mChannels.values().iterator();
+
+        while (iterator.hasNext()) {
+            Channel channel = iterator.next();
+
+            if (channel.mRefs == 0) {
+                iterator.remove();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the channel of the interface, opening it if needed. A channel
+     * whose interface has since changed address, or the default channel once
+     * the default interface has changed (e.g. from Wi-Fi to ethernet), is
+     * replaced, and closed once the sessions still using it release it.
+     *
+     * @param netIf the interface, or null for the one picked by
+     *            {@link WifiUtils#getDefaultMulticastInterface}.
+     */
+    synchronized Channel acquire(Context context, NetworkInterface netIf) throws IOException {
+        String key = (netIf != null) ? netIf.getName() : DEFAULT_INTERFACE;
+        NetworkInterface sendingInterface = (netIf != null) ? netIf
+                : WifiUtils.getDefaultMulticastInterface(context);
+        Channel channel = mChannels.get(key);
+
+        if ((channel != null) && !channel.isBoundTo(sendingInterface)) {
+            mChannels.remove(key);
+            channel.mStale = true;
+            if (channel.mRefs == 0) {
+                channel.close();
+            }
+            channel = null;
+        }
+        if (channel == null) {
+            channel = new Channel(DiscoveryEventLoop.getInstance(),
+                    WifiUtils.createMulticastChannel(sendingInterface));
+            mChannels.put(key, channel);
+        }
+        channel.mRefs++;
+        return channel;
+    }
+
+    /**
+     * Gives back a channel returned by {@link #acquire}. Receivers must be
+     * detached first.
+     */
+    synchronized void release(Channel channel) {
+        if (--channel.mRefs > 0) {
+            return;
+        }
+        if (channel.mStale) {
+            channel.close();
+        } else if (mRetainers == 0) {
+            mChannels.values().remove(channel);
+            channel.close();
+        }
+    }
+
+    /**
+     * A non-blocking channel the queries are sent from, and their unicast
+     * responses received on.
+     */
+    final class Channel {
+        private final DiscoveryEventLoop mEventLoop;
+        private final DatagramChannel mChannel;
+
+        // Guarded by DiscoveryChannels.this.
+        private int mRefs = 0;
+        private boolean mStale = false;
+
+        // The attached sessions, with their buffers. Only used from the event
+        // loop.
+        private final ArrayList<Receiver> mReceivers = new ArrayList<Receiver>();
+        private final ArrayList<ReceiveBufferPool> mBuffers = new ArrayList<ReceiveBufferPool>();
+
+        private Channel(DiscoveryEventLoop eventLoop, DatagramChannel channel) {
+            mEventLoop = eventLoop;
+            mChannel = channel;
+        }
+
+        /**
+         * @return false if the packet was dropped because the send buffer is
+         *         full.
+         */
+        boolean send(DatagramPacket packet) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+
+            return mChannel.send(data, packet.getSocketAddress()) != 0;
+        }
+
+        /**
+         * Starts handing the datagrams received to the receiver, in packets
+         * taken from the given buffers.
+         */
+        void attach(final Receiver receiver, final ReceiveBufferPool buffers) {
+            mEventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mReceivers.add(receiver);
+                    mBuffers.add(buffers);
+                    if (mReceivers.size() == 1) {
+                        mEventLoop.register(mChannel, new DiscoveryEventLoop.Handler() {
+                            @Override
+                            public void onReadable(DatagramChannel channel) {
+                                receivePackets();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops handing datagrams to the receiver.
+         */
+        void detach(final Receiver receiver) {
+            mEventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int index = mReceivers.indexOf(receiver);
+
+                    if (index < 0) {
+                        return;
+                    }
+                    mReceivers.remove(index);
+                    mBuffers.remove(index);
+                    // Nothing is read while no session needs it, which lets
+                    // the event loop end.
+                    if (mReceivers.isEmpty()) {
+                        mEventLoop.unregister(mChannel);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(mChannel.socket().getLocalSocketAddress());
+        }
+
+        /*
+         * A null interface stands for the one the system picks, which the
+         * channel follows when bound to the wildcard address.
+         */
+        private boolean isBoundTo(NetworkInterface netIf) {
+            if (!mChannel.isOpen()) {
+                return false;
+            }
+            InetAddress address = mChannel.socket().getLocalAddress();
+
+            if (netIf == null) {
+                return address.isAnyLocalAddress();
+            }
+            for (InterfaceAddress interfaceAddress : netIf.getInterfaceAddresses()) {
+                if (interfaceAddress.getAddress().equals(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void close() {
+            try {
+                mChannel.close();
+            } catch (IOException exc) {
+                Log.w(TAG, "Could not close the discovery channel.", exc);
+            }
+        }
+
+        /*
+         * Reads the datagrams queued until none is left. Each one is read into
+         * a packet of the first session, and copied for the others.
+         */
+        private void receivePackets() {
+            while (!mReceivers.isEmpty()) {
+                DatagramPacket[] packets = new DatagramPacket[mReceivers.size()];
+
+                for (int i = 0; i < packets.length; i++) {
+                    packets[i] = mBuffers.get(i).tryAcquire();
+                    if (packets[i] == null) {
+                        releasePackets(packets);
+                        pauseReceiving();
+                        return;
+                    }
+                }
+                SocketAddress source;
+                int length;
+
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(packets[0].getData());
+
+                    source = mChannel.receive(data);
+                    length = data.position();
+                } catch (IOException exc) {
+                    releasePackets(packets);
+                    if (mChannel.isOpen()) {
+                        Log.e(TAG, "Could not receive on " + this, exc);
+                    }
+                    return;
+                }
+                if (source == null) {
+                    releasePackets(packets);
+                    return;
+                }
+                for (int i = 0; i < packets.length; i++) {
+                    if (i > 0) {
+                        System.arraycopy(packets[0].getData(), 0, packets[i].getData(), 0, length);
+                    }
+                    packets[i].setLength(length);
+                    packets[i].setSocketAddress(source);
+                }
+                for (int i = 0; i < packets.length; i++) {
+                    mReceivers.get(i).onPacket(packets[i]);
+                }
+            }
+        }
+
+        private void releasePackets(DatagramPacket[] packets) {
+            for (int i = 0; i < packets.length; i++) {
+                if (packets[i] != null) {
+                    mBuffers.get(i).release(packets[i]);
+                }
+            }
+        }
+
+        /*
+         * Leaves the datagrams queued in the channel until the parsers give
+         * some buffers back.
+         */
+        private void pauseReceiving() {
+            mEventLoop.setReading(mChannel, false);
+            mEventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mReceivers.isEmpty()) {
+                        mEventLoop.setReading(mChannel, true);
+                    }
+                }
+            }, BUFFER_WAIT);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread shared by all discovery sessions. It waits on a selector for
+ * the datagrams of their non-blocking channels, and runs their timers, so that
+ * neither sessions nor interfaces need a thread blocked in a receive call.
+ * Handlers and timers run on that thread and must not block.
+ *
+ * The methods can be called from any thread; what they do happens on the loop
+ * thread, in the order they were called. The thread starts when work is
+ * posted, and ends once no channel is registered and no timer is pending.
+ */
+final class DiscoveryEventLoop implements Runnable {
+    private static final String TAG = DiscoveryEventLoop.class.getSimpleName();
+
+    interface Handler {
+        /**
+         * Called on the loop thread when the channel has datagrams to read.
+         * The handler should read them all, since the channel is selected
+         * again as long as some are left.
+         */
+        void onReadable(DatagramChannel channel);
+    }
+
+    /**
+     * A task run once by the loop after a delay, unless cancelled.
+     */
+    final class Timer implements Comparable<Timer> {
+        private final Runnable mTask;
+        private final long mDueTime;
+        private final long mSequence;
+        private volatile boolean mCancelled = false;
+
+        private Timer(Runnable task, long dueTime, long sequence) {
+            mTask = task;
+            mDueTime = dueTime;
+            mSequence = sequence;
+        }
+
+        /**
+         * The task is not run after this returns, unless it is already
+         * running.
+         */
+        void cancel() {
+            mCancelled = true;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mTimers.remove(Timer.this);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (mDueTime != other.mDueTime) {
+                return (mDueTime < other.mDueTime) ? -1 : 1;
+            }
+            return (mSequence < other.mSequence) ? -1 : ((mSequence == other.mSequence) ? 0 : 1);
+        }
+    }
+
+    private static DiscoveryEventLoop sInstance = null;
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Selector mSelector;
+
+    // Only used from the loop thread.
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+    private final HashSet<DatagramChannel> mRegisteredChannels = new HashSet<DatagramChannel>();
+
+    // Guarded by this.
+    private Thread mThread = null;
+    private long mTimerSequence = 0;
+
+    private DiscoveryEventLoop() throws IOException {
+        mSelector = Selector.open();
+    }
+
+    /**
+     * @return the loop of the process.
+     */
+    static synchronized DiscoveryEventLoop getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new DiscoveryEventLoop();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        post(task);
+    }
+
+    /**
+     * Runs the task on the loop thread after the delay.
+     */
+    Timer schedule(Runnable task, long delayMillis) {
+        final Timer timer;
+
+        synchronized (this) {
+            timer = new Timer(task, SystemClock.elapsedRealtime() + delayMillis, mTimerSequence++);
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!timer.mCancelled) {
+                    mTimers.add(timer);
+                }
+            }
+        });
+        return timer;
+    }
+
+    /**
+     * Calls the handler each time the channel has datagrams to read, until the
+     * channel is unregistered or closed. The channel must be non-blocking.
+     */
+    void register(final DatagramChannel channel, final Handler handler) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = channel.keyFor(mSelector);
+
+                    // A key cancelled since the last select is only dropped by
+                    // the next one, and cannot be registered again until then.
+                    if ((key != null) && !key.isValid()) {
+                        mSelector.selectNow();
+                    }
+                    channel.register(mSelector, SelectionKey.OP_READ, handler);
+                    mRegisteredChannels.add(channel);
+                } catch (ClosedChannelException exc) {
+                    Log.w(TAG, "Cannot register a closed channel.");
+                } catch (IOException exc) {
+                    Log.e(TAG, "Cannot register the channel.", exc);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops calling the handler of the channel. The channel can be closed
+     * right away.
+     */
+    void unregister(final DatagramChannel channel) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(mSelector);
+
+                if (key != null) {
+                    key.cancel();
+                }
+                mRegisteredChannels.remove(channel);
+            }
+        });
+    }
+
+    /**
+     * Stops or resumes calling the handler of a registered channel, e.g. while
+     * there is no buffer to read its datagrams into.
+     */
+    void setReading(final DatagramChannel channel, final boolean reading) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(mSelector);
+
+                if ((key != null) && key.isValid()) {
+                    key.interestOps(reading ? SelectionKey.OP_READ : 0);
+                }
+            }
+        });
+    }
+
+    private synchronized void post(Runnable task) {
+        mTasks.add(task);
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        } else {
+            mSelector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            runTasks();
+            long timeout = runDueTimers();
+
+            synchronized (this) {
+                if (mTasks.isEmpty() && mTimers.isEmpty() && mRegisteredChannels.isEmpty()) {
+                    try {
+                        // Deregisters the cancelled keys, which lets their
+                        // channels close for good.
+                        mSelector.selectNow();
+                    } catch (IOException exc) {
+                        Log.w(TAG, "Could not flush the cancelled channels.", exc);
+                    }
+                    mSelector.selectedKeys().clear();
+                    mThread = null;
+                    return;
+                }
+            }
+            try {
+                // Tasks posted since runTasks() wake the selector up.
+                if (mTasks.isEmpty()) {
+                    mSelector.select(timeout);
+                } else {
+                    mSelector.selectNow();
+                }
+            } catch (IOException exc) {
+                Log.e(TAG, "Selector failed.", exc);
+            }
+            dispatchSelectedKeys();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException exc) {
+                Log.e(TAG, "Discovery task failed.", exc);
+            }
+        }
+    }
+
+    /*
+     * Returns how long to wait for the next timer, 0 if there is none.
+     */
+    private long runDueTimers() {
+        long now = SystemClock.elapsedRealtime();
+        Timer timer;
+
+        while ((timer = mTimers.peek()) != null) {
+            if (timer.mDueTime > now) {
+                return timer.mDueTime - now;
+            }
+            mTimers.poll();
+            if (!timer.mCancelled) {
+                try {
+                    timer.mTask.run();
+                } catch (RuntimeException exc) {
+                    Log.e(TAG, "Discovery timer failed.", exc);
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void dispatchSelectedKeys() {
+        Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+
+            iterator.remove();
+            if (key.isValid() && key.isReadable()) {
+                try {
+                    ((Handler) key.attachment()).onReadable((DatagramChannel) key.channel());
+                } catch (RuntimeException exc) {
+                    Log.e(TAG, "Discovery handler failed.", exc);
+                }
+            }
+        }
+    }
+}
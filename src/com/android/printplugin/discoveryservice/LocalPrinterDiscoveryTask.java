@@ -17,8 +17,6 @@ package com.android.printplugin.discoveryservice;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Message;
@@ -31,31 +29,100 @@ import com.android.printplugin.discovery.R;
 import com.hp.android.printplugin.support.PrintServiceStrings;
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
 {
     private static final String TAG = "PluginDiscoveryTask";
 
+	/**
+	 * Action of the intent sent to the client when a printer it was told about
+	 * leaves the network. The extras identify the printer as in the intent
+	 * that reported it.
+	 */
+	public static final String ACTION_PRINT_SERVICE_RETURN_DEVICE_REMOVED =
+			"com.android.printplugin.discoveryservice.RETURN_DEVICE_REMOVED";
+
+	/**
+	 * Boolean extra of the discovery request. When set, the addresses of each
+	 * printer are ranked by how fast they accept a connection before the
+	 * printer is reported.
+	 */
+	public static final String EXTRA_RANK_ADDRESSES =
+			"com.android.printplugin.discoveryservice.RANK_ADDRESSES";
+
+	/**
+	 * String array extra of the intents reporting a printer: all its addresses,
+	 * the preferred one first.
+	 */
+	public static final String EXTRA_DEVICE_ADDRESSES =
+			"com.android.printplugin.discoveryservice.DEVICE_ADDRESSES";
+
+	/**
+	 * String extra of the intents reporting a printer: the name of the network
+	 * interface it was found on (e.g. "wlan0"), when known.
+	 */
+	public static final String EXTRA_DEVICE_INTERFACE =
+			"com.android.printplugin.discoveryservice.DEVICE_INTERFACE";
+
 	private static final int DEFAULT_INITIAL_TIMEOUT = 8000;
 	private static final int DEFAULT_TIMEOUT_DECAY = 2000;
 	private static final int DEFAULT_TIMEOUT_AFTER_FOUND = 5000;
-	private static final int BUFFER_LENGTH = 4 * 1024;
+	private static final int BUFFER_LENGTH = MDnsDiscovery.MAX_PACKET_SIZE;
+	private static final int BUFFER_COUNT = 8;
+	private static final int PARSER_SHUTDOWN_TIMEOUT = 1000;
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int RANKING_SHUTDOWN_TIMEOUT = 3000;
 
 	private final MDnsDiscovery mMDNSDiscovery;
+	private final ResponseFingerprintCache mSeenResponses = new ResponseFingerprintCache();
 	private final Messenger mClientCallBack;
-	private byte[] buffer = new byte[BUFFER_LENGTH];
+	private final ReceiveBufferPool mBuffers = new ReceiveBufferPool(BUFFER_COUNT, BUFFER_LENGTH);
+
+	// Responses are parsed here, so that the event loop can go back to the
+	// channels right away. Parsing state (mSeenResponses and the response
+	// parsing of mMDNSDiscovery) is only used from this thread.
+	private final ScheduledExecutorService mParser = Executors.newSingleThreadScheduledExecutor();
+	private QueryScheduler mQueryScheduler = null;
+	// Releases the printers held for truncated responses. Only used from the
+	// parser thread.
+	private ScheduledFuture<?> mHeldPrintersRelease = null;
+	private MDnsListener mListener = null;
+	// The interfaces discovery runs on, once their channels are created.
+	private volatile Link[] mLinks = new Link[0];
+
+	// Receives the responses on the links, and times them out.
+	private DiscoveryEventLoop mEventLoop = null;
+	// Number of links still receiving. Only used from the event loop.
+	private int mReceivingLinks = 0;
+	private final CountDownLatch mReceiveDone = new CountDownLatch(1);
+
+	// Both null unless the request asks for the addresses to be ranked.
+	private final ExecutorService mRankings;
+	private final AddressRanker mAddressRanker;
 
     protected final Message mRequest;
     protected final Intent mIntent;
     protected final Bundle mBundleData;
 
     private final Context mContext;
+    private final VendorIntentTable mVendorIntents;
 
-	public LocalPrinterDiscoveryTask(Context context, Message msg) {
+	public LocalPrinterDiscoveryTask(Context context, Message msg, VendorIntentTable vendorIntents) {
 		super();
 
         mContext = context;
         mRequest = msg;
+        mVendorIntents = vendorIntents;
 
         Intent intent = null;
         Bundle bundleData = null;
@@ -68,18 +135,30 @@ public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
         mBundleData = bundleData;
 
 		mClientCallBack = mRequest.replyTo;
-		mMDNSDiscovery = new MDnsDiscovery(context);
+		mMDNSDiscovery = new MDnsDiscovery(context,
+				ServiceTypeRegistry.create(context.getResources(), mIntent));
+
+		if ((mBundleData != null) && mBundleData.getBoolean(EXTRA_RANK_ADDRESSES, false))
+		{
+			mRankings = Executors.newCachedThreadPool();
+			mAddressRanker = new AddressRanker(CONNECT_TIMEOUT);
+		} else
+		{
+			mRankings = null;
+			mAddressRanker = null;
+		}
 	}
 
 	@Override
 	public Intent doInBackground(Void... params) {
-		DatagramSocket socket = null;
 		try
 		{
-			socket = mMDNSDiscovery.createSocket();
-			socket.setReuseAddress(true);
-			sendQueryPacket(socket);
-			receiveResponsePackets(socket);
+			mEventLoop = DiscoveryEventLoop.getInstance();
+			mLinks = createLinks();
+			reportCachedPrinters();
+			startListener();
+			startQueries();
+			receiveOnAllLinks();
 			
 		} catch (UnknownHostException exc)
 		{
@@ -89,101 +168,563 @@ public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
 			Log.e(TAG, "IO error occurred during printer discovery.", exc);
 		} finally
 		{
-			mMDNSDiscovery.releaseSocket(socket);
+			stopListener();
+			finishParsing();
+			for (Link link : mLinks)
+			{
+				mMDNSDiscovery.releaseChannel(link.channel);
+			}
+			Log.d(TAG, "Duplicate responses skipped: " + mSeenResponses.getHits()
+					+ ", distinct responses: " + mSeenResponses.getMisses());
 		}
 		return null;
 	}
 	
-	private void sendQueryPacket(DatagramSocket socket) throws UnknownHostException, IOException
+	/*
+	 * Takes the query channel of each interface that can do multicast, e.g. both
+	 * ethernet and Wi-Fi, or Wi-Fi and a Wi-Fi Direct group. Falls back to
+	 * the single interface picked by WifiUtils if none can be used.
+	 */
+	private Link[] createLinks() throws IOException
 	{
-		DatagramPacket[] queryPackets = mMDNSDiscovery
-				.createQueryPackets();
+		ArrayList<Link> links = new ArrayList<Link>();
 
-		for (DatagramPacket packet : queryPackets)
+		for (NetworkInterface netIf : WifiUtils.getMulticastInterfaces())
 		{
-			socket.send(packet);
+			try
+			{
+				links.add(new Link(netIf, mMDNSDiscovery.acquireChannel(netIf)));
+			} catch (IOException exc)
+			{
+				Log.w(TAG, "Cannot discover printers on " + netIf.getName(), exc);
+			}
 		}
+		if (links.isEmpty())
+		{
+			links.add(new Link(null, mMDNSDiscovery.acquireChannel(null)));
+		}
+		return links.toArray(new Link[links.size()]);
 	}
 
 	/*
-	 * The algorithm for receiving the response packets will decrease the
-	 * timeout according to the search results. Socket timeout starts with a
-	 * value of 8s. If no printer is found, the socket timeout is decreased by
-	 * 2s until it reaches 0 and the algorithm stops listening for new
-	 * responses. So when no printer is found, the sequence of socket timeouts
-	 * is 8, 6, 4, and 2s, adding up to 20s of wait time. When a printer is
-	 * found, both timeout and decay are set to 5s, which means that the thread
-	 * will receive new packets with a timeout of 5s until no packet is
-	 * received. The first time the receive method reaches the timeout without
-	 * receiving any packets, the algorithm finishes.
+	 * The link whose subnet the address is on, or null if none is.
 	 */
-	private void receiveResponsePackets(final DatagramSocket socket) throws IOException
+	private Link findLink(InetAddress address)
 	{
+		for (Link link : mLinks)
+		{
+			if (link.isOnLink(address))
+			{
+				return link;
+			}
+		}
+		return null;
+	}
 
-		int timeout = DEFAULT_INITIAL_TIMEOUT;
-		int remainingTO = DEFAULT_TIMEOUT_AFTER_FOUND;
-		int decay = DEFAULT_TIMEOUT_DECAY;
-		DatagramPacket packet = new DatagramPacket(buffer, BUFFER_LENGTH);
+	/*
+	 * Listens to the announcements and responses multicast on the network, if
+	 * enabled. Discovery goes on with the responses to our queries only if
+	 * the listener cannot be started.
+	 */
+	private void startListener()
+	{
+		if (!mContext.getResources().getBoolean(R.bool.mdns_passive_listener_enabled))
+		{
+			return;
+		}
+		ArrayList<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
 
-		while (!Thread.interrupted() && (timeout > 0))
+		for (Link link : mLinks)
+		{
+			if (link.netIf != null)
+			{
+				interfaces.add(link.netIf);
+			}
+		}
+		try
+		{
+			mListener = new MDnsListener(mMDNSDiscovery.createListenerSocket(interfaces),
+					WifiUtils.createMulticastLock(mContext), mBuffers,
+					new MDnsListener.Receiver() {
+						@Override
+						public void onPacket(DatagramPacket packet) {
+							handOffPacket(packet, findLink(packet.getAddress()), false);
+						}
+					});
+			mListener.start();
+		} catch (IOException exc)
+		{
+			Log.w(TAG, "Could not listen to mDNS announcements.", exc);
+			mListener = null;
+		}
+	}
+
+	private void stopListener()
+	{
+		if (mListener != null)
+		{
+			mListener.stop();
+			mListener = null;
+		}
+	}
+
+	/*
+	 * Asks right away for the records the response did not bring, instead of
+	 * waiting for the next query round. The query goes out on the link the
+	 * response came from, or on all of them if it is not known.
+	 */
+	private void sendFollowUpQueries(DatagramPacket response, Link link)
+	{
+		try
+		{
+			DatagramPacket[] packets = mMDNSDiscovery.createFollowUpQueries(response);
+
+			sendOnLinks((link != null) ? new Link[] { link } : mLinks, packets);
+		} catch (IOException exc)
+		{
+			Log.w(TAG, "Could not send the follow-up query.", exc);
+		}
+	}
+
+	private void sendOnLinks(Link[] links, DatagramPacket[] packets)
+	{
+		for (Link link : links)
 		{
 			try
 			{
-				socket.setSoTimeout(timeout);
-				socket.receive(packet);
-				Log.d(TAG,
-						"Response from " + packet.getAddress() + ":"
-								+ packet.getPort());
-				if (!Thread.interrupted())
+				for (DatagramPacket packet : packets)
 				{
-					if (processIncomingPacket(packet))
+					if (!link.channel.send(packet))
 					{
+						Log.w(TAG, "Send buffer full, query dropped on " + link);
+					}
+				}
+			} catch (IOException exc)
+			{
+				Log.w(TAG, "Could not send the query on " + link, exc);
+			}
+		}
+	}
+
+	/*
+	 * Queries are sent by the parser thread: they list the printers already
+	 * found as known answers, and it owns the parsing state.
+	 */
+	private void startQueries()
+	{
+		mQueryScheduler = new QueryScheduler(mParser, new QueryScheduler.Query() {
+			@Override
+			public boolean send() {
+				return sendQueryPacket();
+			}
+		});
+		mQueryScheduler.start();
+	}
+
+	/*
+	 * Sends the same query on every link at once. Returns false once there is
+	 * nothing left to ask.
+	 */
+	private boolean sendQueryPacket()
+	{
+		try
+		{
+			DatagramPacket[] queryPackets = mMDNSDiscovery.createQueryPackets();
+
+			if (queryPackets.length == 0)
+			{
+				Log.d(TAG, "All service types are stable, not querying anymore.");
+				return false;
+			}
+			sendOnLinks(mLinks, queryPackets);
+		} catch (IOException exc)
+		{
+			Log.e(TAG, "Could not send the discovery query.", exc);
+		}
+		return true;
+	}
+
+	/*
+	 * Receives on all links from the event loop, and waits until each one has
+	 * timed out. Discovering on several interfaces takes no longer than on
+	 * one, and no thread is blocked receiving.
+	 */
+	private void receiveOnAllLinks()
+	{
+		final Link[] links = mLinks;
+
+		mEventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Link link : links)
+				{
+					startReceiving(link);
+				}
+			}
+		});
+		try
+		{
+			mReceiveDone.await();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		} finally
+		{
+			stopReceivingAll(links);
+		}
+	}
+
+	/*
+	 * Waits until no packet can be handed off anymore, since the parser is
+	 * shut down next.
+	 */
+	private void stopReceivingAll(final Link[] links)
+	{
+		final CountDownLatch stopped = new CountDownLatch(1);
+		boolean interrupted = false;
+
+		mEventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Link link : links)
+				{
+					stopReceiving(link);
+				}
+				stopped.countDown();
+			}
+		});
+		while (stopped.getCount() > 0)
+		{
+			try
+			{
+				stopped.await();
+			} catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * The algorithm for receiving the response packets will decrease the
+	 * timeout according to the search results. The timeout starts with a
+	 * value of 8s. If no printer is found, the timeout is decreased by 2s
+	 * until it reaches 0 and the algorithm stops listening for new
+	 * responses. So when no printer is found, the sequence of timeouts is 8,
+	 * 6, 4, and 2s, adding up to 20s of wait time. When a printer is found,
+	 * both timeout and decay are set to 5s, which means that the link will
+	 * receive new packets with a timeout of 5s until no packet is received.
+	 * The first time the timeout is reached without receiving any packets,
+	 * the algorithm finishes. Each link runs it on its own.
+	 *
+	 * startReceiving, stopReceiving and what they call run on the event loop.
+	 */
+	private void startReceiving(final Link link)
+	{
+		link.receiving = true;
+		link.timeout = DEFAULT_INITIAL_TIMEOUT;
+		link.decay = DEFAULT_TIMEOUT_DECAY;
+		mReceivingLinks++;
+		link.receiver = new DiscoveryChannels.Receiver() {
+			@Override
+			public void onPacket(DatagramPacket packet) {
+				receiveResponsePacket(link, packet);
+			}
+		};
+		link.channel.attach(link.receiver, mBuffers);
+		restartTimeout(link);
+	}
+
+	private void stopReceiving(Link link)
+	{
+		if (!link.receiving)
+		{
+			return;
+		}
+		link.receiving = false;
+		link.deadline.cancel();
+		link.channel.detach(link.receiver);
+		if (--mReceivingLinks == 0)
+		{
+			mReceiveDone.countDown();
+		}
+	}
+
+	private void restartTimeout(final Link link)
+	{
+		if (link.deadline != null)
+		{
+			link.deadline.cancel();
+		}
+		link.deadline = mEventLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				onTimeout(link);
+			}
+		}, link.timeout);
+	}
+
+	/*
+	 * No packet was received within the timeout. If at least one printer has
+	 * already been found, the timeout was set so that the algorithm finishes.
+	 * Otherwise, we will decrease the timeout by 2s and try again. Queries
+	 * are resent by mQueryScheduler.
+	 */
+	private void onTimeout(Link link)
+	{
+		link.timeout -= link.decay;
+		if (link.timeout <= 0)
+		{
+			stopReceiving(link);
+		} else
+		{
+			restartTimeout(link);
+		}
+	}
 
-						// A valid printer was found: wait for another
-						// 5s and stop listening.
-						timeout = remainingTO;
-						decay = timeout;
+	/*
+	 * The channel of the link may be shared with other sessions: it hands each
+	 * of them its own copy of the packets.
+	 */
+	private void receiveResponsePacket(Link link, DatagramPacket packet)
+	{
+		if (!link.receiving)
+		{
+			mBuffers.release(packet);
+			return;
+		}
+		Log.d(TAG,
+				"Response from " + packet.getAddress() + ":"
+						+ packet.getPort() + " on " + link);
+		handOffPacket(packet, link, true);
+		restartTimeout(link);
+	}
+
+	/*
+	 * Queues the packet for parsing. Its buffer goes back to the pool once the
+	 * parser is done with it: parseResponse does not keep any reference to the
+	 * packet data. The link is the one the packet was received on, null if
+	 * not known. Unicast packets are those received on the query channels,
+	 * multicast ones those received by the listener.
+	 */
+	private void handOffPacket(final DatagramPacket packet, final Link link, final boolean unicast)
+	{
+		mParser.execute(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					if (mSeenResponses.isDuplicate(packet))
+					{
+						// This exact answer was already parsed in this
+						// session: nothing new to report.
 					} else
 					{
-						Log.w(TAG,
-								"Printer could not be parsed or is not supported.");
+						if (processIncomingPacket(packet, link, unicast))
+						{
+							setPrinterFound(link);
+						} else
+						{
+							Log.d(TAG, "No supported printer in the packet.");
+						}
+						// The listener also hears other hosts' queries, which
+						// have nothing to follow up on.
+						if (MDnsDiscovery.isResponse(packet))
+						{
+							sendFollowUpQueries(packet, link);
+						}
+						scheduleHeldPrinters();
 					}
-					// Resets the packet length to reuse the packet.
-					packet.setLength(BUFFER_LENGTH);
-				} else {
-					timeout = 0;
+				} finally
+				{
+					mBuffers.release(packet);
 				}
-			} catch (SocketTimeoutException exc)
-			{
+			}
+		});
+	}
 
-				// Socket timed out and we received no packets. If at
-				// least one printer has
-				// already been found, timeout is set to zero and the
-				// algorithm finishes.
-				// Otherwise, we will decrease the timeout by 2s and try
-				// again.
-				sendQueryPacket(socket);
-				timeout -= decay;
-			} catch (SocketException e)
+	/*
+	 * Reports the printers whose records are still cached from a previous
+	 * discovery, while the queries are sent. They do not shorten the receive
+	 * timeouts: the printers still have to answer this session's queries.
+	 */
+	private void reportCachedPrinters()
+	{
+		mParser.execute(new Runnable() {
+			@Override
+			public void run() {
+				reportPrinters(mMDNSDiscovery.getCachedPrinters());
+			}
+		});
+	}
+
+	/*
+	 * Lets the packets already received be parsed and reported before the
+	 * task ends.
+	 */
+	private void finishParsing()
+	{
+		if (mQueryScheduler != null)
+		{
+			mQueryScheduler.stop();
+		}
+		mParser.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mHeldPrintersRelease != null)
+				{
+					mHeldPrintersRelease.cancel(false);
+					mHeldPrintersRelease = null;
+				}
+				reportPrinters(mMDNSDiscovery.flushPendingResponses());
+			}
+		});
+		mParser.shutdown();
+		try
+		{
+			if (!mParser.awaitTermination(PARSER_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
 			{
-				e.printStackTrace();
-			} catch (IOException e)
+				mParser.shutdownNow();
+			}
+		} catch (InterruptedException e)
+		{
+			mParser.shutdownNow();
+		}
+		if (mRankings != null)
+		{
+			mRankings.shutdown();
+			try
+			{
+				mRankings.awaitTermination(RANKING_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e)
 			{
-				e.printStackTrace();
 			}
+			mRankings.shutdownNow();
+			mAddressRanker.shutdown();
+		}
+	}
+
+	/*
+	 * Reports the printer, once its addresses are ranked if the request asks
+	 * for it. Ranking connects to the printer, so it does not hold up the
+	 * parser.
+	 */
+	private void reportPrinter(final Printer printer)
+	{
+		if ((mRankings == null) || (printer.getInetAddresses().length < 2))
+		{
+			printerFound(printer);
+			return;
 		}
+		mRankings.execute(new Runnable() {
+			@Override
+			public void run() {
+				InetAddress[] addresses = printer.getInetAddresses();
+
+				try
+				{
+					addresses = mAddressRanker.rank(addresses, printer.getPort());
+				} catch (InterruptedException e)
+				{
+					Log.w(TAG, "Address ranking interrupted for " + printer);
+				}
+				printerFound(new Printer(printer, addresses));
+			}
+		});
 	}
 
-	private boolean processIncomingPacket(DatagramPacket packet)
+	/*
+	 * A valid printer was found: the links it may be on wait for another 5s
+	 * from now and stop listening, as when the printer is parsed right after
+	 * its packet is received.
+	 */
+	private void setPrinterFound(final Link link)
+	{
+		mEventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Link other : mLinks)
+				{
+					if (other.receiving && ((link == null) || (other == link)))
+					{
+						other.timeout = DEFAULT_TIMEOUT_AFTER_FOUND;
+						other.decay = other.timeout;
+						restartTimeout(other);
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Reports the printers of truncated responses once they have been held
+	 * long enough, even if no other packet arrives.
+	 */
+	private void scheduleHeldPrinters()
+	{
+		long timeout = mMDNSDiscovery.getHoldTimeout();
+
+		// Later holds never end before the one already scheduled.
+		if ((timeout < 0) || (mHeldPrintersRelease != null))
+		{
+			return;
+		}
+		try
+		{
+			mHeldPrintersRelease = mParser.schedule(new Runnable() {
+				@Override
+				public void run() {
+					mHeldPrintersRelease = null;
+					if (reportPrinters(mMDNSDiscovery.releaseHeldPrinters()))
+					{
+						setPrinterFound(null);
+					}
+					scheduleHeldPrinters();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException exc)
+		{
+			// The session is ending: flushPendingResponses reports them.
+		}
+	}
+
+	private boolean processIncomingPacket(DatagramPacket packet, Link link, boolean unicast)
+	{
+		return reportPrinters(mMDNSDiscovery.parseResponse(packet,
+				(link != null) ? link.netIf : null, unicast));
+	}
+
+	/*
+	 * Reports the printers found, after those removed since the last report,
+	 * which include the printers the found ones replace.
+	 *
+	 * @return true if a printer was found.
+	 */
+	private boolean reportPrinters(Printer[] printers)
 	{
 		boolean foundSupportedPrinter = false;
-		Printer[] printers = mMDNSDiscovery.parseResponse(packet);
+		Printer[] removedPrinters = mMDNSDiscovery.getRemovedPrinters();
+
+		if (removedPrinters.length > 0)
+		{
+			// The same announcement must be parsed again if the printer
+			// comes back.
+			mSeenResponses.clear();
+			for (Printer printer : removedPrinters)
+			{
+				printerRemoved(printer);
+			}
+		}
 
 		if ((printers != null) && (printers.length > 0))
 		{
 			for (Printer printer : printers)
 			{
-				printerFound(printer);
+				reportPrinter(printer);
 				foundSupportedPrinter = true;
 			}
 		}
@@ -192,16 +733,52 @@ public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
 
 	protected void printerFound(Printer printer)
 	{
-		String value;
 		Intent returnIntent = new Intent(
                 PrintServiceStrings.ACTION_PRINT_SERVICE_RETURN_DEVICE_RESOLVED);
-		
+
+		putPrinterExtras(returnIntent, printer);
+
+        Intent installIntent = mVendorIntents.getInstallIntent(printer.getVendor());
+        if (installIntent != null) {
+            installIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            returnIntent.putExtra(Intent.EXTRA_INTENT, installIntent);
+        }
+
+		sendToClient(returnIntent);
+	}
+
+	/*
+	 * Tells the client that a printer reported earlier has left the network,
+	 * with the same extras as when it was found.
+	 */
+	protected void printerRemoved(Printer printer)
+	{
+		Intent returnIntent = new Intent(ACTION_PRINT_SERVICE_RETURN_DEVICE_REMOVED);
+
+		putPrinterExtras(returnIntent, printer);
+		sendToClient(returnIntent);
+	}
+
+	private void putPrinterExtras(Intent returnIntent, Printer printer)
+	{
+		String value;
+
 		// Add Name
 		returnIntent.putExtra(PrintServiceStrings.DISCOVERY_DEVICE_NAME,
 				printer.getModel());
 		// Add IP Address
 		returnIntent.putExtra(PrintServiceStrings.DISCOVERY_DEVICE_ADDRESS,
 				printer.getInetAddress().getHostAddress());
+		InetAddress[] addresses = printer.getInetAddresses();
+		String[] hostAddresses = new String[addresses.length];
+		for (int i = 0; i < addresses.length; i++)
+		{
+			hostAddresses[i] = addresses[i].getHostAddress();
+		}
+		returnIntent.putExtra(EXTRA_DEVICE_ADDRESSES, hostAddresses);
+		value = printer.getInterfaceName();
+		if (!TextUtils.isEmpty(value))
+			returnIntent.putExtra(EXTRA_DEVICE_INTERFACE, value);
 
 		value = printer.getBonjourName();
 		if (!TextUtils.isEmpty(value))
@@ -209,13 +786,10 @@ public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
 		value = printer.getBonjourDomainName();
 		if (!TextUtils.isEmpty(value))
 			returnIntent.putExtra(PrintServiceStrings.DISCOVERY_DEVICE_BONJOUR_DOMAIN_NAME, value);
+	}
 
-        Intent installIntent = getVendorIntent(printer.getVendor());
-        if (installIntent != null) {
-            installIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            returnIntent.putExtra(Intent.EXTRA_INTENT, installIntent);
-        }
-
+	private void sendToClient(Intent returnIntent)
+	{
         if (mClientCallBack != null) {
 		    try {
 				mClientCallBack.send(Message.obtain(null, 0, returnIntent));
@@ -224,35 +798,42 @@ public class LocalPrinterDiscoveryTask extends AsyncTask<Void, Void, Intent>
         }
 	}
 
-    private Intent getVendorIntent(String vendor) {
-        if (!TextUtils.isEmpty(vendor)) {
-            final Resources resources = mContext.getResources();
-            String[] knownVendors = resources.getStringArray(R.array.known_print_plugin_vendors);
-            if ((knownVendors != null) && (knownVendors.length > 0)) {
-                for(String knownVendor : knownVendors) {
-
-                    String vendorIDsResource = resources.getString(R.string.known_print_plugin_ids_for_vendor, knownVendor);
-                    String vendorPackageResource = resources.getString(R.string.print_plugin_package_for_vendor, knownVendor);
-
-                    int vendorIDsResourceID = resources.getIdentifier(vendorIDsResource, "array", mContext.getPackageName());
-                    int vendorPackageResourceID = resources.getIdentifier(vendorPackageResource, "string", mContext.getPackageName());
-
-                    if ((vendorIDsResourceID != 0) && (vendorPackageResourceID != 0)) {
-                        String[] vendorIDs = resources.getStringArray(vendorIDsResourceID);
-                        if ((vendorIDs != null) && (vendorIDs.length > 0)) {
-                            for(String vendorID : vendorIDs) {
-                                if (vendor.equalsIgnoreCase(vendorID)) {
-                                    String vendorPackageName = resources.getString(vendorPackageResourceID);
-                                    return new Intent(Intent.ACTION_VIEW, Uri.parse(resources.getString(R.string.market_package_search, vendorPackageName))).putExtra(Intent.EXTRA_INSTALLER_PACKAGE_NAME, vendorPackageName);
-                                }
-                            }
-                        }
-                    }
-
-                }
-            }
-            return new Intent(Intent.ACTION_VIEW, Uri.parse(resources.getString(R.string.market_generic_search, vendor)));
-        }
-        return null;
-    }
+	/*
+	 * A network interface discovery runs on, with the channel its queries are
+	 * sent from and its responses received on.
+	 */
+	private static final class Link
+	{
+		// Null when no interface could be listed, and the system picks one.
+		final NetworkInterface netIf;
+		final DiscoveryChannels.Channel channel;
+		private final List<InterfaceAddress> mAddresses;
+
+		// Receive state, only used from the event loop.
+		boolean receiving = false;
+		int timeout;
+		int decay;
+		DiscoveryEventLoop.Timer deadline = null;
+		DiscoveryChannels.Receiver receiver = null;
+
+		Link(NetworkInterface netIf, DiscoveryChannels.Channel channel)
+		{
+			this.netIf = netIf;
+			this.channel = channel;
+			// Listed once: looking them up queries the kernel.
+			mAddresses = (netIf != null) ? netIf.getInterfaceAddresses()
+					: Collections.<InterfaceAddress> emptyList();
+		}
+
+		boolean isOnLink(InetAddress address)
+		{
+			return (netIf != null) && WifiUtils.isOnLink(netIf, mAddresses, address);
+		}
+
+		@Override
+		public String toString()
+		{
+			return (netIf != null) ? netIf.getName() : "default";
+		}
+	}
 }
@@ -16,15 +16,25 @@ limitations under the License.
 package com.android.printplugin.discoveryservice;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import com.android.printplugin.discoveryservice.parsers.*;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 class MDnsDiscovery {
     private static final String TAG = MDnsDiscovery.class.getSimpleName();
@@ -32,159 +42,543 @@ class MDnsDiscovery {
     static final String MDNS_GROUP_ADDRESS = "224.0.0.251";
     static final int MDNS_PORT = 5353;
 
-    private static final byte[] IPP_MDNS_REQUEST_PACKET = {
+    // Largest mDNS message (RFC 6762, section 17).
+    static final int MAX_PACKET_SIZE = 9000;
 
-        // Transaction ID: 0x0000
-        0x00, 0x00,
+    // How long to hold the printers of a host whose unicast response was
+    // truncated, while the follow-up query asks for what was left out.
+    private static final long TRUNCATED_RESPONSE_TIMEOUT = 500;
 
-        // Flags: 0x0000 (Standard query)
-        0x00, 0x00,
+    private static final Printer[] NO_PRINTERS = new Printer[0];
 
-        // Questions: 1
-        0x00, 0x01,
+    // QR bit, in the first byte of the header flags.
+    private static final int FLAGS_OFFSET = 2;
+    private static final int FLAG_RESPONSE = 0x80;
 
-        // Answer RRs: 0
-        0x00, 0x00,
+    private static final String MDNS_DOMAIN = "local";
 
-        // Authority RRs: 0
-        0x00, 0x00,
+    // Queries are kept under the usual Ethernet MTU, less IPv6 and UDP
+    // headers. More known answers continue in further packets.
+    private static final int MAX_QUERY_SIZE = 1440;
 
-        // Additional RRs: 0
-        0x00, 0x00,
+    // A service type is no longer asked for once this many queries in a row
+    // did not bring any new printer of that type.
+    private static final int STABLE_AFTER_QUIET_QUERIES = 3;
 
-        // Queries
-        // Name: _ipp._tcp.local
-        0x04, 0x5F, 0x69, 0x70, 0x70, 0x04, 0x5F, 0x74, 0x63, 0x70, 0x05, 0x6C, 0x6F,
-        0x63, 0x61, 0x6C, 0x00,
+    // How long to wait for the answer to a follow-up question before asking
+    // it again.
+    private static final long FOLLOW_UP_INTERVAL = 1000;
 
-        // Type: PTR (Domain name pointer)
-        0x00, 0x0C,
+    // Records received by every discovery session of the process, so that a
+    // new session can report the printers still known without waiting for
+    // their responses.
+    private static final DnsRecordCache sRecordCache = new DnsRecordCache();
 
-        // x000 0000 0000 0001 = Class: IN (0x0001)
-        // 1xxx xxxx xxxx xxxx = QU: true
-        (byte) 0x80, 0x01
-    };
+    private Context context;
 
-    private static final byte[] PDL_MDNS_REQUEST_PACKET = {
+    // Rejects responses that do not answer for any printer service type
+    // before they are parsed.
+    private final ServiceTypeMatcher responseFilter;
+    private final ServiceTypeMatcher serviceTypeMatcher;
+    private final ServiceTypeRegistry serviceTypes;
+
+    // Records received during this discovery session. Services are built
+    // from it as soon as their last missing record arrives, whichever packet
+    // brings it.
+    private final DnsSdParser services;
+
+    // Hosts that sent a truncated unicast response, with the time after which
+    // we stop waiting for the records it left out. The services of a host are
+    // not built while its response is pending, so that they are built from
+    // complete records.
+    private final HashMap<InetAddress, Long> truncatedResponses = new HashMap<InetAddress, Long>();
+
+    // Hosts that sent responses, with the interface they were received on, so
+    // that each printer is tagged with the interface it was found on.
+    private final HashMap<InetAddress, NetworkInterface> sourceInterfaces =
+            new HashMap<InetAddress, NetworkInterface>();
+    // Interface of the response being parsed, null if unknown.
+    private NetworkInterface receivingInterface = null;
+
+    private int queriesSent = 0;
+
+    // Follow-up questions asked, by name and type, with the time after which
+    // they may be asked again.
+    private final HashMap<String, Long> followUps = new HashMap<String, Long>();
+
+    // For each registered service type: whether a new printer of that type
+    // was found since the last query, and the number of queries in a row
+    // that found none.
+    private final boolean[] foundSinceQuery;
+    private final int[] quietQueries;
+
+    // Printers reported during this session, by service name, so that the
+    // goodbye records of their services can be reported. A printer
+    // advertising several service types is reported for the type of highest
+    // priority, and shared by all of its services.
+    private final HashMap<DnsPacket.Name, Printer> reportedPrinters =
+            new HashMap<DnsPacket.Name, Printer>();
+    // The same printers, by hostname.
+    private final HashMap<DnsPacket.Name, ReportedHost> reportedHosts =
+            new HashMap<DnsPacket.Name, ReportedHost>();
+    // Printers reported again for a service type of higher priority, so that
+    // the client drops what it was told first.
+    private final ArrayList<Printer> replacedPrinters = new ArrayList<Printer>();
+
+    private static class ReportedHost {
+        Printer printer;
+        int priority;
+    }
 
-            // Transaction ID: 0x0000
-            0x00, 0x00,
+    public MDnsDiscovery(Context context, ServiceTypeRegistry serviceTypes) {
+        this.context = context;
+        this.serviceTypes = serviceTypes;
+        this.responseFilter = serviceTypes.createMatcher();
+        this.serviceTypeMatcher = serviceTypes.createMatcher();
+        this.services = new DnsSdParser(sRecordCache, this.serviceTypeMatcher);
+        this.foundSinceQuery = new boolean[serviceTypes.getServiceTypes().length];
+        this.quietQueries = new int[this.foundSinceQuery.length];
+    }
 
-            // Flags: 0x0000 (Standard query)
-            0x00, 0x00,
+    /**
+     * @param netIf the interface to send the queries through, or null for the
+     *            one picked by {@link WifiUtils#getDefaultMulticastInterface}.
+     * @return the channel the queries are sent from, and their unicast
+     *         responses received on. It is shared with the other discovery
+     *         sessions, and must be given back to {@link #releaseChannel}.
+     */
+    public DiscoveryChannels.Channel acquireChannel(NetworkInterface netIf) throws IOException {
+        return DiscoveryChannels.getInstance().acquire(context, netIf);
+    }
 
-            // Questions: 1
-            0x00, 0x01,
+    /**
+     * @param interfaces the interfaces to listen on, or none to listen on the
+     *            one {@link #acquireChannel} sends through by default.
+     * @return a socket receiving all the mDNS traffic of the network, see
+     *         {@link WifiUtils#createMulticastListenerSocket}.
+     */
+    public MulticastSocket createListenerSocket(List<NetworkInterface> interfaces) throws IOException {
+        return WifiUtils.createMulticastListenerSocket(context,
+                InetAddress.getByName(MDNS_GROUP_ADDRESS), MDNS_PORT, interfaces);
+    }
 
-            // Answer RRs: 0
-            0x00, 0x00,
+    public void releaseChannel(DiscoveryChannels.Channel channel) {
+        if (channel != null) {
+            DiscoveryChannels.getInstance().release(channel);
+        }
+    }
 
-            // Authority RRs: 0
-            0x00, 0x00,
+    /**
+     * Creates a query asking for every registered service type at once, the
+     * types of higher priority first. Types whose last queries did not find
+     * any new printer are considered stable and left out. The
+     * PTR records of the printers already reported in this session are listed
+     * as known answers, so that these printers do not answer again (RFC 6762,
+     * section 7.1).
+     *
+     * Queries are sent from the ephemeral port of a discovery channel, so
+     * responders treat all of them as legacy unicast queries and answer to
+     * that port (RFC 6762, section 6.7). The QU bit would change nothing and
+     * is not set.
+     *
+     * Must be called from the thread parsing the responses.
+     *
+     * @return the packets of the query, or none if every type is stable.
+     */
+    public DatagramPacket[] createQueryPackets() throws IOException {
+        InetAddress group = InetAddress.getByName(MDNS_GROUP_ADDRESS);
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_QUERY_SIZE);
+        ServiceType[] types = this.serviceTypes.getServiceTypes();
+        int nQuestions = 0;
+
+        for (int i = 0; i < types.length; i++) {
+            if (this.queriesSent > 0) {
+                this.quietQueries[i] = this.foundSinceQuery[i] ? 0 : (this.quietQueries[i] + 1);
+                this.foundSinceQuery[i] = false;
+            }
+            if (this.quietQueries[i] < STABLE_AFTER_QUIET_QUERIES) {
+                writer.addQuestion(types[i].getName() + "." + MDNS_DOMAIN, DnsPacket.ResourceType.PTR);
+                nQuestions++;
+            }
+        }
+        this.queriesSent++;
+        if (nQuestions == 0) {
+            return new DatagramPacket[0];
+        }
+        for (DnsRecordCache.FreshRecord record : sRecordCache.getFreshRecords(DnsPacket.ResourceType.PTR)) {
+            DnsPacket.Ptr ptr = (DnsPacket.Ptr) record.getEntry();
 
-            // Additional RRs: 0
-            0x00, 0x00,
+            if (this.reportedPrinters.containsKey(ptr.getPointedName())) {
+                writer.addKnownAnswer(ptr, record.getRemainingTtl());
+            }
+        }
+        return this.toPackets(writer, group);
+    }
 
-            // Queries
-           // Name: _pdl-datastream._tcp.local
-            0x0F, 0x5F, 0x70, 0x64, 0x6C, 0x2D, 0x64, 0x61, 0x74, 0x61, 0x73, 0x74,
-            0x72, 0x65, 0x61, 0x6D, 0x04, 0x5F, 0x74, 0x63, 0x70, 0x05, 0x6C, 0x6F,
-            0x63, 0x61, 0x6C, 0x00,
+    private DatagramPacket[] toPackets(DnsQueryWriter writer, InetAddress destination)
+            throws IOException {
+        List<byte[]> messages;
 
-            // Type: PTR (Domain name pointer)
-            0x00, 0x0C,
+        try {
+            messages = writer.build();
+        } catch (DnsException exc) {
+            throw new IOException("Could not write the mDNS query.", exc);
+        }
+        DatagramPacket[] packets = new DatagramPacket[messages.size()];
 
-            // x000 0000 0000 0001 = Class: IN (0x0001)
-            // 1xxx xxxx xxxx xxxx = QU: true
-            (byte) 0x80, 0x01
-    };
+        for (int i = 0; i < packets.length; i++) {
+            byte[] message = messages.get(i);
 
-    private static final byte[] PRINTER_MDNS_REQUEST_PACKET = {
+            packets[i] = new DatagramPacket(message, message.length, destination, MDNS_PORT);
+        }
+        return packets;
+    }
 
-            // Transaction ID: 0x0000
-            0x00, 0x00,
+    /**
+     * Creates a query asking for the records still missing to build the
+     * services the host that sent the response announced, e.g. when its
+     * response only had their PTR records. It is sent to the mDNS port of the
+     * host that sent the response (RFC 6762, section 5.5) when that response
+     * came from the mDNS port, and multicast otherwise. Like the other
+     * queries, it is a legacy unicast query, answered to the channel it is
+     * sent from. Each question is asked at most once per second.
+     *
+     * Must be called from the thread parsing the responses, right after
+     * {@link #parseResponse} returns for the response.
+     *
+     * @return the packets of the query, or none if the packet is not a
+     *         response or nothing is missing.
+     */
+    public DatagramPacket[] createFollowUpQueries(DatagramPacket response) throws IOException {
+        InetAddress source = response.getAddress();
+
+        if (!isResponse(response) || !this.services.hasIncompleteServices(source)) {
+            return new DatagramPacket[0];
+        }
+        boolean direct = (response.getPort() == MDNS_PORT);
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_QUERY_SIZE);
+        long now = SystemClock.elapsedRealtime();
+        int nQuestions = 0;
+
+        for (DnsPacket.Question question : this.services.getMissingRecords(source)) {
+            String key = question.getName() + "/" + question.getType();
+            Long askAgainAt = this.followUps.get(key);
+
+            if ((askAgainAt == null) || (askAgainAt.longValue() <= now)) {
+                this.followUps.put(key, Long.valueOf(now + FOLLOW_UP_INTERVAL));
+                writer.addQuestion(question.getName(), question.getType());
+                nQuestions++;
+            }
+        }
+        if (nQuestions == 0) {
+            return new DatagramPacket[0];
+        }
+        InetAddress destination = direct ? source : InetAddress.getByName(MDNS_GROUP_ADDRESS);
 
-            // Flags: 0x0000 (Standard query)
-            0x00, 0x00,
+        return this.toPackets(writer, destination);
+    }
 
-            // Questions: 1
-            0x00, 0x01,
+    /**
+     * Parses the printers advertised by a response. Records are accumulated
+     * for the whole session: a printer is returned once, as soon as all its
+     * records have been received, even if they came in different packets.
+     * Nothing references the packet data afterwards, so the packet can be
+     * reused as soon as this returns.
+     *
+     * The TC bit only matters in unicast responses, which answer our queries
+     * sent from an ephemeral port (legacy queries): it means the responder left
+     * records out, and no continuation follows. The printers of that host are
+     * then held for a while, see {@link #getHoldTimeout()}, so that the
+     * follow-up query can bring the missing records. In multicast responses
+     * the TC bit is ignored (RFC 6762, section 18.5).
+     *
+     * @param netIf the interface the packet was received on, null if unknown.
+     *            The printers are tagged with the interface their host's
+     *            responses came from.
+     * @param unicast true if the packet was sent to us only, false if it was
+     *            multicast.
+     */
+    public Printer[] parseResponse(DatagramPacket packet, NetworkInterface netIf, boolean unicast) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        InetAddress source = packet.getAddress();
+        boolean expired = this.expireTruncatedResponses();
+
+        this.receivingInterface = netIf;
+
+        // Queries, ours included, are received too when listening to the
+        // mDNS port.
+        if (!isResponse(buffer)) {
+            return expired ? this.buildPrinters() : NO_PRINTERS;
+        }
+        // The packets of hosts with incomplete services skip the filter, since
+        // the missing records (e.g. an address) do not carry a service type
+        // name.
+        if (!this.truncatedResponses.containsKey(source) && !this.services.hasIncompleteServices(source)
+                && !this.responseFilter.matchesAnyAnswer(buffer)) {
+            return expired ? this.buildPrinters() : NO_PRINTERS;
+        }
 
-            // Answer RRs: 0
-            0x00, 0x00,
+//        if (V) {
+//            Log.v(TAG, "DNS packet contents from " + packet.getAddress() + ":");
+//            Log.v(TAG, Util.byteArrayToDebugString(packet.getData(), packet.getLength()));
+//        }
+        try {
+            if (netIf != null) {
+                this.sourceInterfaces.put(source, netIf);
+            }
+            if (this.services.add(buffer, source) && unicast) {
+                this.truncatedResponses.put(source, Long.valueOf(
+                        SystemClock.elapsedRealtime() + TRUNCATED_RESPONSE_TIMEOUT));
+            } else {
+                this.truncatedResponses.remove(source);
+            }
+        } catch (Exception exc) {
+            Log.e(TAG, "Error while parsing DNS response.", exc);
+        }
+        return this.buildPrinters();
+    }
 
-            // Authority RRs: 0
-            0x00, 0x00,
+    /**
+     * Builds the printers from the records cached by previous sessions whose
+     * TTLs have not expired. They are not reported again when their responses
+     * to this session's queries arrive.
+     */
+    public Printer[] getCachedPrinters() {
+        this.receivingInterface = null;
+        for (DnsPacket.Entry entry : sRecordCache.getRecords()) {
+            this.services.add(entry);
+        }
+        return this.buildPrinters();
+    }
 
-            // Additional RRs: 0
-            0x00, 0x00,
+    /**
+     * @return the printers reported during this session whose services have
+     *         since sent goodbye records, e.g. because they were turned off,
+     *         and those since reported again for a service type of higher
+     *         priority.
+     */
+    public Printer[] getRemovedPrinters() {
+        DnsPacket.Name[] removedServices = this.services.takeRemovedServices();
+
+        if ((removedServices.length == 0) && this.replacedPrinters.isEmpty()) {
+            return NO_PRINTERS;
+        }
+        ArrayList<Printer> printers = new ArrayList<Printer>(this.replacedPrinters);
 
-            // Queries
-            // Name: _printer._tcp.local
-            0x08, 0x5F, 0x70, 0x72, 0x69, 0x6E, 0x74, 0x65, 0x72, 0x04, 0x5F, 0x74, 0x63, 0x70, 0x05, 0x6C, 0x6F,
-            0x63, 0x61, 0x6C, 0x00,
+        this.replacedPrinters.clear();
+        for (DnsPacket.Name serviceName : removedServices) {
+            Printer printer = this.reportedPrinters.remove(serviceName);
 
-            // Type: PTR (Domain name pointer)
-            0x00, 0x0C,
+            // The printer is gone with the last of its services.
+            if ((printer != null) && !this.reportedPrinters.containsValue(printer)) {
+                Iterator<ReportedHost> iterator = this.reportedHosts.values().iterator();
 
-            // x000 0000 0000 0001 = Class: IN (0x0001)
-            // 1xxx xxxx xxxx xxxx = QU: true
-            (byte) 0x80, 0x01
-    };
+                while (iterator.hasNext()) {
+                    if (iterator.next().printer == printer) {
+                        iterator.remove();
+                    }
+                }
+                printers.add(printer);
+            }
+        }
+        return printers.toArray(new Printer[printers.size()]);
+    }
 
-    private Context context;
+    /**
+     * @return how long until the printers of a truncated response stop being
+     *         held, or -1 if none is held.
+     */
+    public long getHoldTimeout() {
+        long timeout = -1;
+        long now = SystemClock.elapsedRealtime();
 
-    public MDnsDiscovery(Context context) {
-        this.context = context;
+        for (Long holdUntil : this.truncatedResponses.values()) {
+            long remaining = Math.max(0, holdUntil.longValue() - now);
+
+            if ((timeout < 0) || (remaining < timeout)) {
+                timeout = remaining;
+            }
+        }
+        return timeout;
     }
 
-    public DatagramSocket createSocket() throws IOException {
-        return WifiUtils.createMulticastSocket(context);
+    /**
+     * Stops holding the printers of truncated responses that have waited long
+     * enough. Must be called once {@link #getHoldTimeout()} has elapsed.
+     *
+     * @return the printers released.
+     */
+    public Printer[] releaseHeldPrinters() {
+        return this.expireTruncatedResponses() ? this.buildPrinters() : NO_PRINTERS;
     }
 
-    public void releaseSocket(DatagramSocket socket) {
-        if (socket != null) {
-            socket.close();
-        }
+    /**
+     * Gives up waiting for the rest of truncated responses.
+     *
+     * @return the printers found in what was received of them.
+     */
+    public Printer[] flushPendingResponses() {
+        this.truncatedResponses.clear();
+        return this.buildPrinters();
     }
 
-    public DatagramPacket[] createQueryPackets() throws UnknownHostException {
-        InetAddress group = InetAddress.getByName(MDNS_GROUP_ADDRESS);
+    /**
+     * @return true if the packet is a response, false if it is a query.
+     */
+    static boolean isResponse(DatagramPacket packet) {
+        return isResponse(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+    }
+
+    private static boolean isResponse(ByteBuffer buffer) {
+        return (buffer.remaining() > FLAGS_OFFSET)
+                && ((buffer.get(buffer.position() + FLAGS_OFFSET) & FLAG_RESPONSE) != 0);
+    }
 
-        return new DatagramPacket[] {
-                new DatagramPacket(IPP_MDNS_REQUEST_PACKET, IPP_MDNS_REQUEST_PACKET.length, group, MDNS_PORT),
-                new DatagramPacket(PDL_MDNS_REQUEST_PACKET, PDL_MDNS_REQUEST_PACKET.length, group, MDNS_PORT),
-                new DatagramPacket(PRINTER_MDNS_REQUEST_PACKET, PRINTER_MDNS_REQUEST_PACKET.length, group, MDNS_PORT),
-        };
+    private boolean expireTruncatedResponses() {
+        if (this.truncatedResponses.isEmpty()) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> iterator = this.truncatedResponses.values().iterator();
+        boolean expired = false;
+
+        while (iterator.hasNext()) {
+            if (iterator.next().longValue() <= now) {
+                iterator.remove();
+                expired = true;
+            }
+        }
+        return expired;
     }
 
-    public Printer[] parseResponse(DatagramPacket packet) {
+    private Printer[] buildPrinters() {
         ArrayList<Printer> printers = new ArrayList<Printer>();
 
-//        if (V) {
-//            Log.v(TAG, "DNS packet contents from " + packet.getAddress() + ":");
-//            Log.v(TAG, Util.byteArrayToDebugString(packet.getData(), packet.getLength()));
-//        }
         try {
-            DnsPacket dnsPacket = new DnsParser().parse(packet);
-            DnsService[] services = new DnsSdParser().parse(dnsPacket);
+            this.addPrinters(this.services.build(this.truncatedResponses.keySet()), printers);
+        } catch (DnsException exc) {
+            Log.e(TAG, "Error while parsing DNS response.", exc);
+        }
+        return printers.isEmpty() ? NO_PRINTERS : printers.toArray(new Printer[printers.size()]);
+    }
 
-            for (DnsService service : services) {
-                BonjourParser bonjourParser = new BonjourParser(service);
+    private void markFound(ServiceType instanceType) {
+        ServiceType[] types = this.serviceTypes.getServiceTypes();
 
-                if (bonjourParser.isPrinter()) {
-                    String name = bonjourParser.getHostname();
-                    String model = bonjourParser.getModel();
-                    InetAddress address = bonjourParser.getAddress();
-                    String vendor = bonjourParser.getVendor();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].getInstanceType().equalsIgnoreCase(instanceType.getName())) {
+                this.foundSinceQuery[i] = true;
+            }
+        }
+    }
 
-                    printers.add(new Printer(address, model, bonjourParser.getBonjourName(), name, vendor));
+    /*
+     * An invalid service does not keep the others from being reported. It is
+     * forgotten, so that it is built again if it is announced again. The
+     * services of higher priority come first, so that a printer advertising
+     * several types in one response is reported once, for the best of them.
+     */
+    private void addPrinters(DnsService[] services, ArrayList<Printer> printers) {
+        // Stable: services of equal priorities keep their order.
+        Arrays.sort(services, new Comparator<DnsService>() {
+            @Override
+            public int compare(DnsService lhs, DnsService rhs) {
+                return getPriority(rhs) - getPriority(lhs);
+            }
+        });
+        for (DnsService service : services) {
+            try {
+                this.addPrinter(service, printers);
+            } catch (DnsException exc) {
+                Log.w(TAG, "Ignoring invalid service " + service.getName() + ": " + exc.getMessage());
+                this.services.forget(service.getName());
+            } catch (IllegalArgumentException exc) {
+                Log.w(TAG, "Ignoring invalid service " + service.getName() + ": " + exc.getMessage());
+                this.services.forget(service.getName());
+            }
+        }
+    }
+
+    private void addPrinter(DnsService service, ArrayList<Printer> printers) throws DnsException {
+        BonjourParser bonjourParser = new BonjourParser(service, this.serviceTypeMatcher);
+
+        if (bonjourParser.isPrinter()) {
+            int priority = this.getPriority(service);
+            ReportedHost host = this.reportedHosts.get(service.getHostname());
+
+            if ((host != null) && (priority <= host.priority)) {
+                // Another service of a printer already reported, through a
+                // type of higher priority.
+                this.reportedPrinters.put(service.getName(), host.printer);
+                return;
+            }
+            String name = bonjourParser.getHostname();
+            InetAddress[] addresses = bonjourParser.getAddresses();
+            NetworkInterface netIf = this.findInterface(addresses);
+            Printer printer = new Printer(scopeAddresses(addresses, netIf), bonjourParser.getPort(),
+                    bonjourParser.getPrinterAttributes(),
+                    bonjourParser.getBonjourName(), name,
+                    (netIf != null) ? netIf.getName() : null);
+
+            if (host == null) {
+                host = new ReportedHost();
+                this.reportedHosts.put(service.getHostname(), host);
+            } else {
+                for (Map.Entry<DnsPacket.Name, Printer> entry : this.reportedPrinters.entrySet()) {
+                    if (entry.getValue() == host.printer) {
+                        entry.setValue(printer);
+                    }
                 }
+                this.replacedPrinters.add(host.printer);
             }
-        } catch (Exception exc) {
-            Log.e(TAG, "Error while parsing DNS response.", exc);
+            host.printer = printer;
+            host.priority = priority;
+            this.reportedPrinters.put(service.getName(), printer);
+            this.markFound(bonjourParser.getServiceType());
+            printers.add(printer);
         }
-        return printers.toArray(new Printer[printers.size()]);
+    }
+
+    private int getPriority(DnsService service) {
+        ServiceType serviceType = this.serviceTypeMatcher.match(service.getName());
+
+        return (serviceType != null) ? this.serviceTypes.getPriority(serviceType)
+                : ServiceTypeRegistry.DEFAULT_PRIORITY;
+    }
+
+    /*
+     * The interface the responses of the printer were received on, or else
+     * the one of the response being parsed.
+     */
+    private NetworkInterface findInterface(InetAddress[] addresses) {
+        for (InetAddress address : addresses) {
+            NetworkInterface netIf = this.sourceInterfaces.get(address);
+
+            if (netIf != null) {
+                return netIf;
+            }
+        }
+        return this.receivingInterface;
+    }
+
+    /*
+     * IPv6 link-local addresses can only be connected to through the interface
+     * they were found on.
+     */
+    private static InetAddress[] scopeAddresses(InetAddress[] addresses, NetworkInterface netIf) {
+        if (netIf == null) {
+            return addresses;
+        }
+        for (int i = 0; i < addresses.length; i++) {
+            if ((addresses[i] instanceof Inet6Address) && addresses[i].isLinkLocalAddress()) {
+                try {
+                    addresses[i] = Inet6Address.getByAddress(null, addresses[i].getAddress(), netIf);
+                } catch (UnknownHostException exc) {
+                    Log.w(TAG, "Could not scope " + addresses[i] + " to " + netIf.getName(), exc);
+                }
+            }
+        }
+        return addresses;
     }
 
 }
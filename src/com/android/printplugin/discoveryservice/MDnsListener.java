@@ -0,0 +1,101 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.MulticastSocket;
+
+/**
+ * Listens on the mDNS port to the announcements printers multicast when they
+ * start or change address, and to the responses to the queries of other
+ * hosts, so that printers are found without waiting for our own queries.
+ * Received packets are handed over as they are; telling responses apart is
+ * up to the receiver.
+ */
+class MDnsListener implements Runnable {
+    private static final String TAG = MDnsListener.class.getSimpleName();
+
+    interface Receiver {
+        /**
+         * Takes ownership of the packet, which must go back to the pool.
+         */
+        void onPacket(DatagramPacket packet);
+    }
+
+    private final MulticastSocket mSocket;
+    private final WifiManager.MulticastLock mMulticastLock;
+    private final ReceiveBufferPool mBuffers;
+    private final Receiver mReceiver;
+    private final Thread mThread;
+
+    MDnsListener(MulticastSocket socket, WifiManager.MulticastLock multicastLock,
+            ReceiveBufferPool buffers, Receiver receiver) {
+        mSocket = socket;
+        mMulticastLock = multicastLock;
+        mBuffers = buffers;
+        mReceiver = receiver;
+        mThread = new Thread(this, TAG);
+    }
+
+    void start() {
+        mMulticastLock.acquire();
+        mThread.start();
+    }
+
+    /**
+     * Closes the socket, which ends the listening thread, and waits for it.
+     */
+    void stop() {
+        mSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mMulticastLock.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        DatagramPacket packet = null;
+
+        try {
+            while (!mSocket.isClosed()) {
+                if (packet == null) {
+                    packet = mBuffers.acquire();
+                }
+                mSocket.receive(packet);
+                mReceiver.onPacket(packet);
+                packet = null;
+            }
+        } catch (InterruptedException exc) {
+            Log.d(TAG, "Listener interrupted.");
+        } catch (IOException exc) {
+            if (!mSocket.isClosed()) {
+                Log.e(TAG, "Error while listening to mDNS traffic.", exc);
+            }
+        } finally {
+            if (packet != null) {
+                mBuffers.release(packet);
+            }
+        }
+    }
+}
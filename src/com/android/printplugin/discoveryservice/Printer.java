@@ -19,6 +19,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
+import com.android.printplugin.discoveryservice.parsers.PrinterAttributes;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -36,36 +37,54 @@ public final class Printer implements Parcelable {
      * Keep these declarations ordered alphabetically by field name. This helps
      * to keep readFromParcel and writeToParcel up-to-date.
      */
+    public final PrinterAttributes attributes;
     public final String bonjourName;
     public final String bonjourDomainName;
     public final InetAddress inetAddress;
+    public final InetAddress[] inetAddresses;
+    public final String interfaceName;
     public final String model;
+    public final int port;
     public final String vendor;
 
     /**
      * Package-level visible constructor to be used by the discovery helper
      *
-     * @param inetAddress the string representation of the printer IP address
-     * @param model the printer model name (e.g. "Officejet 6500 E709n")
+     * @param inetAddresses the printer IP addresses, the preferred one first
+     * @param port the port of the printer service
+     * @param attributes the printer attributes advertised by the printer. The
+     *            model is the printer model name (e.g. "Officejet 6500 E709n").
      * @param bonjourName the printer name (e.g.HPD11201). If null or empty, the model
      *            name will be used as printer name.
      * @param bonjourDomainName Bonjour Domain Name
-     * @throws IllegalArgumentException if either inetAddress or model is null or
+     * @param interfaceName the name of the network interface the printer was
+     *            found on, or null if unknown
+     * @throws IllegalArgumentException if either inetAddresses or model is null or
      *             empty.
      */
-    Printer(InetAddress inetAddress, String model, String bonjourName, String bonjourDomainName, String vendor) throws IllegalArgumentException {
-        this.inetAddress = checkInetAddress(inetAddress);
-        this.model = checkModel(model);
+    Printer(InetAddress[] inetAddresses, int port, PrinterAttributes attributes, String bonjourName, String bonjourDomainName,
+            String interfaceName) throws IllegalArgumentException {
+        this.inetAddresses = checkInetAddresses(inetAddresses);
+        this.inetAddress = this.inetAddresses[0];
+        this.interfaceName = interfaceName;
+        this.port = port;
+        this.attributes = attributes;
+        this.model = checkModel(attributes.getModel());
         this.bonjourName = bonjourName;
         this.bonjourDomainName = bonjourDomainName;
-        this.vendor = vendor;
+        this.vendor = attributes.getVendor();
     }
 
-    private static InetAddress checkInetAddress(InetAddress inetAddress) throws IllegalArgumentException {
-        if (inetAddress == null) {
-            throw new IllegalArgumentException("inetAddress can not be null");
+    private static InetAddress[] checkInetAddresses(InetAddress[] inetAddresses) throws IllegalArgumentException {
+        if ((inetAddresses == null) || (inetAddresses.length == 0)) {
+            throw new IllegalArgumentException("inetAddresses can not be null nor empty");
         }
-        return inetAddress;
+        for (InetAddress inetAddress : inetAddresses) {
+            if (inetAddress == null) {
+                throw new IllegalArgumentException("inetAddress can not be null");
+            }
+        }
+        return inetAddresses.clone();
     }
 
     private static String checkModel(String model) throws IllegalArgumentException {
@@ -83,17 +102,20 @@ public final class Printer implements Parcelable {
     }
 
     private Printer(Parcel in) throws UnknownHostException {
+        this.attributes = in.readParcelable(PrinterAttributes.class.getClassLoader());
         this.bonjourName = in.readString();
         this.bonjourDomainName = in.readString();
-        int inetAddrSize = in.readInt();
-        if (inetAddrSize > 0) {
-            byte[] addr = new byte[inetAddrSize];
+        int inetAddrCount = in.readInt();
+        this.inetAddresses = new InetAddress[inetAddrCount];
+        for (int i = 0; i < inetAddrCount; i++) {
+            byte[] addr = new byte[in.readInt()];
             in.readByteArray(addr);
-            this.inetAddress = InetAddress.getByAddress(addr);
-        } else {
-            this.inetAddress = null;
+            this.inetAddresses[i] = InetAddress.getByAddress(addr);
         }
+        this.inetAddress = (inetAddrCount > 0) ? this.inetAddresses[0] : null;
+        this.interfaceName = in.readString();
         this.model = in.readString();
+        this.port = in.readInt();
         this.vendor = in.readString();
     }
 
@@ -111,7 +133,27 @@ public final class Printer implements Parcelable {
      * Copy the contents of other into this object
      */
     public Printer(Printer other) {
+        this.attributes = other.attributes;
+        this.inetAddresses = other.inetAddresses;
         this.inetAddress = other.inetAddress;
+        this.interfaceName = other.interfaceName;
+        this.port = other.port;
+        this.model = other.model;
+        this.bonjourName = other.bonjourName;
+        this.bonjourDomainName = other.bonjourDomainName;
+        this.vendor = other.vendor;
+    }
+
+    /**
+     * Copy the contents of other into this object, with the addresses in
+     * another order
+     */
+    Printer(Printer other, InetAddress[] inetAddresses) {
+        this.attributes = other.attributes;
+        this.inetAddresses = checkInetAddresses(inetAddresses);
+        this.inetAddress = this.inetAddresses[0];
+        this.interfaceName = other.interfaceName;
+        this.port = other.port;
         this.model = other.model;
         this.bonjourName = other.bonjourName;
         this.bonjourDomainName = other.bonjourDomainName;
@@ -125,6 +167,28 @@ public final class Printer implements Parcelable {
         return this.inetAddress;
     }
 
+    /**
+     * @return all the addresses of the printer, the preferred one first
+     */
+    public InetAddress[] getInetAddresses() {
+        return this.inetAddresses.clone();
+    }
+
+    /**
+     * @return the name of the network interface the printer was found on
+     *         (e.g. "wlan0"), or null if unknown
+     */
+    public String getInterfaceName() {
+        return this.interfaceName;
+    }
+
+    /**
+     * @return the port of the printer service
+     */
+    public int getPort() {
+        return this.port;
+    }
+
     /**
      * @return the printer model name, e.g. "HP Officejet 6500 E709n"
      */
@@ -144,6 +208,14 @@ public final class Printer implements Parcelable {
         return this.vendor;
     }
 
+    /**
+     * @return the attributes advertised by the printer, e.g. its document
+     *         formats
+     */
+    public PrinterAttributes getAttributes() {
+        return this.attributes;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -177,24 +249,22 @@ public final class Printer implements Parcelable {
      */
     @Override
     public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeParcelable(this.attributes, flags);
         parcel.writeString(this.bonjourName);
         parcel.writeString(this.bonjourDomainName);
         /*
          * In spite of what Coverity thinks, InetAddress.getAddress() can NOT
          * return null. Never.
          */
-        if (this.inetAddress != null) {
-            byte[] addr = this.inetAddress.getAddress();
-            if(addr != null) {
-	            parcel.writeInt(addr.length);
-	            parcel.writeByteArray(addr);
-	        } else {
-	            parcel.writeInt(0);
-	        }
-        } else {
-            parcel.writeInt(0);
+        parcel.writeInt(this.inetAddresses.length);
+        for (InetAddress inetAddress : this.inetAddresses) {
+            byte[] addr = inetAddress.getAddress();
+            parcel.writeInt(addr.length);
+            parcel.writeByteArray(addr);
         }
+        parcel.writeString(this.interfaceName);
         parcel.writeString(this.model);
+        parcel.writeInt(this.port);
         parcel.writeString(this.vendor);
     }
 
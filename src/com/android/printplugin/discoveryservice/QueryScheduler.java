@@ -0,0 +1,103 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.os.SystemClock;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the discovery queries at 0, 1, 2, 4, 8... seconds, each delayed by a
+ * random 20 to 120 ms (RFC 6762, section 5.2), independently of how responses
+ * are received. Queries are sent from the given executor, and stop when the
+ * query reports that there is nothing left to ask.
+ */
+class QueryScheduler {
+
+    interface Query {
+        /**
+         * @return false if there is nothing left to ask, in which case no
+         *         further query is sent.
+         */
+        boolean send();
+    }
+
+    private static final long FIRST_INTERVAL = 1000;
+    private static final long MAX_INTERVAL = 60 * 60 * 1000;
+    private static final int MIN_JITTER = 20;
+    private static final int MAX_JITTER = 120;
+
+    private final ScheduledExecutorService mExecutor;
+    private final Query mQuery;
+    private final Random mRandom = new Random();
+
+    private long mStartTime;
+    private long mNextOffset;
+    private ScheduledFuture<?> mNextQuery = null;
+    private boolean mStopped = false;
+
+    QueryScheduler(ScheduledExecutorService executor, Query query) {
+        mExecutor = executor;
+        mQuery = query;
+    }
+
+    synchronized void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mNextOffset = 0;
+        scheduleNext();
+    }
+
+    /**
+     * Cancels the queries not sent yet. Must be called before the executor is
+     * shut down.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        if (mNextQuery != null) {
+            mNextQuery.cancel(false);
+            mNextQuery = null;
+        }
+    }
+
+    private void scheduleNext() {
+        if (mStopped) {
+            return;
+        }
+        long jitter = MIN_JITTER + mRandom.nextInt(MAX_JITTER - MIN_JITTER + 1);
+        long delay = Math.max(0, (mStartTime + mNextOffset + jitter) - SystemClock.elapsedRealtime());
+
+        // 0, 1, 2, 4, 8... seconds after the start.
+        mNextOffset = (mNextOffset == 0) ? FIRST_INTERVAL : Math.min(mNextOffset * 2, MAX_INTERVAL);
+        try {
+            mNextQuery = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mQuery.send()) {
+                        synchronized (QueryScheduler.this) {
+                            scheduleNext();
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException exc) {
+            mNextQuery = null;
+        }
+    }
+}
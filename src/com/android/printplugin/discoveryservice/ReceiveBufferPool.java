@@ -0,0 +1,58 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of receive packets, each one with its own buffer. The receiving
+ * thread takes a packet, fills it and hands it over for parsing; the parser
+ * gives it back once nothing references its buffer anymore. When all packets
+ * are being parsed, the receiving thread waits for one to come back, leaving
+ * the datagrams queued in the socket, or stops reading for a while if it must
+ * not block.
+ */
+class ReceiveBufferPool {
+    private final ArrayBlockingQueue<DatagramPacket> packets;
+    private final int bufferLength;
+
+    public ReceiveBufferPool(int size, int bufferLength) {
+        this.packets = new ArrayBlockingQueue<DatagramPacket>(size);
+        this.bufferLength = bufferLength;
+        for (int i = 0; i < size; i++) {
+            this.packets.add(new DatagramPacket(new byte[bufferLength], bufferLength));
+        }
+    }
+
+    public DatagramPacket acquire() throws InterruptedException {
+        return this.packets.take();
+    }
+
+    /**
+     * @return a packet, or null if all are being parsed. For receivers that
+     *         must not wait, such as the discovery event loop.
+     */
+    public DatagramPacket tryAcquire() {
+        return this.packets.poll();
+    }
+
+    public void release(DatagramPacket packet) {
+        // Resets the packet length so it can be reused.
+        packet.setLength(this.bufferLength);
+        this.packets.offer(packet);
+    }
+}
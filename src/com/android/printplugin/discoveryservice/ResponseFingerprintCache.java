@@ -0,0 +1,91 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.HashSet;
+
+/**
+ * Remembers the responses received during one discovery session, so that
+ * byte-identical answers sent again by the same host (printers answer each of
+ * our queries, every round) are not parsed again.
+ *
+ * A response is identified by its source address and a 64 bit FNV-1a hash of
+ * its payload. The transaction ID is left out of the hash since it is the
+ * only thing that changes between answers to different queries.
+ */
+class ResponseFingerprintCache {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int TRANSACTION_ID_LENGTH = 2;
+
+    private final HashSet<Long> fingerprints = new HashSet<Long>();
+    private int hits;
+    private int misses;
+
+    /**
+     * Records the packet fingerprint.
+     *
+     * @return true if the same response from the same host was already seen.
+     */
+    public boolean isDuplicate(DatagramPacket packet) {
+        if (this.fingerprints.add(Long.valueOf(fingerprint(packet)))) {
+            this.misses++;
+            return false;
+        }
+        this.hits++;
+        return true;
+    }
+
+    public int getHits() {
+        return this.hits;
+    }
+
+    public int getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Forgets the responses seen so far. The hit and miss counts cover the
+     * whole session and are kept.
+     */
+    public void clear() {
+        this.fingerprints.clear();
+    }
+
+    private static long fingerprint(DatagramPacket packet) {
+        long hash = FNV_OFFSET_BASIS;
+        InetAddress address = packet.getAddress();
+
+        if (address != null) {
+            hash = hash(hash, address.getAddress(), 0, address.getAddress().length);
+        }
+        int length = packet.getLength();
+        int start = Math.min(TRANSACTION_ID_LENGTH, length);
+
+        hash = hash(hash, packet.getData(), packet.getOffset() + start, length - start);
+        return hash ^ length;
+    }
+
+    private static long hash(long hash, byte[] data, int offset, int length) {
+        for (int i = offset; i < (offset + length); i++) {
+            hash ^= (data[i] & 0xFF);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.content.Intent;
+import android.content.res.Resources;
+import android.util.Log;
+import com.android.printplugin.discovery.R;
+import com.android.printplugin.discoveryservice.parsers.ServiceType;
+import com.android.printplugin.discoveryservice.parsers.ServiceTypeMatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The DNS-SD service types browsed for printers, with their priorities. They
+ * are read from the mdns_service_types resources, and a discovery request can
+ * add its own, or change their priorities, with {@link #EXTRA_SERVICE_TYPES}
+ * and {@link #EXTRA_SERVICE_TYPE_PRIORITIES}. The registry drives both the
+ * queries, which ask for the types of higher priority first, and the matching
+ * of responses.
+ */
+public final class ServiceTypeRegistry {
+    private static final String TAG = ServiceTypeRegistry.class.getSimpleName();
+
+    /**
+     * String array extra of the discovery request: more service types to
+     * browse, e.g. "_ipps._tcp" or "_universal._sub._ipp._tcp".
+     */
+    public static final String EXTRA_SERVICE_TYPES =
+            "com.android.printplugin.discoveryservice.SERVICE_TYPES";
+
+    /**
+     * Int array extra of the discovery request: the priorities of the types
+     * of {@link #EXTRA_SERVICE_TYPES}, the higher first. Types without a
+     * priority get {@link #DEFAULT_PRIORITY}.
+     */
+    public static final String EXTRA_SERVICE_TYPE_PRIORITIES =
+            "com.android.printplugin.discoveryservice.SERVICE_TYPE_PRIORITIES";
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private final ServiceType[] serviceTypes;
+    private final int[] priorities;
+
+    private ServiceTypeRegistry(ServiceType[] serviceTypes, int[] priorities) {
+        this.serviceTypes = serviceTypes;
+        this.priorities = priorities;
+    }
+
+    /**
+     * Builds the registry from the resources, and from the extras of the
+     * discovery request if there is one.
+     */
+    public static ServiceTypeRegistry create(Resources resources, Intent request) {
+        // Keeps the order types were first met in, for equal priorities.
+        LinkedHashMap<ServiceType, Integer> types = new LinkedHashMap<ServiceType, Integer>();
+
+        addTypes(types, resources.getStringArray(R.array.mdns_service_types),
+                resources.getIntArray(R.array.mdns_service_type_priorities));
+        if (request != null) {
+            addTypes(types, request.getStringArrayExtra(EXTRA_SERVICE_TYPES),
+                    request.getIntArrayExtra(EXTRA_SERVICE_TYPE_PRIORITIES));
+        }
+        ArrayList<Map.Entry<ServiceType, Integer>> entries =
+                new ArrayList<Map.Entry<ServiceType, Integer>>(types.entrySet());
+
+        // Stable: types of equal priorities keep their order.
+        Collections.sort(entries, new Comparator<Map.Entry<ServiceType, Integer>>() {
+            @Override
+            public int compare(Map.Entry<ServiceType, Integer> lhs, Map.Entry<ServiceType, Integer> rhs) {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        });
+        ServiceType[] serviceTypes = new ServiceType[entries.size()];
+        int[] priorities = new int[entries.size()];
+
+        for (int i = 0; i < serviceTypes.length; i++) {
+            serviceTypes[i] = entries.get(i).getKey();
+            priorities[i] = entries.get(i).getValue().intValue();
+        }
+        return new ServiceTypeRegistry(serviceTypes, priorities);
+    }
+
+    private static void addTypes(LinkedHashMap<ServiceType, Integer> types, String[] names,
+            int[] priorities) {
+        if (names == null) {
+            return;
+        }
+        for (int i = 0; i < names.length; i++) {
+            int priority = ((priorities != null) && (i < priorities.length))
+                    ? priorities[i] : DEFAULT_PRIORITY;
+
+            try {
+                ServiceType serviceType = new ServiceType(names[i].trim());
+
+                // A type listed again takes its new priority.
+                types.remove(serviceType);
+                types.put(serviceType, Integer.valueOf(priority));
+            } catch (IllegalArgumentException exc) {
+                Log.w(TAG, "Ignoring service type: " + exc.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the service types, the higher priority first.
+     */
+    public ServiceType[] getServiceTypes() {
+        return this.serviceTypes.clone();
+    }
+
+    /**
+     * @return the priority of the type of a service instance, i.e. the
+     *         highest of the registered types it is an instance of, subtypes
+     *         included, or {@link #DEFAULT_PRIORITY} if there is none.
+     */
+    public int getPriority(ServiceType instanceType) {
+        // Sorted by priority, so the first match is the highest.
+        for (int i = 0; i < this.serviceTypes.length; i++) {
+            if (this.serviceTypes[i].getInstanceType().equalsIgnoreCase(instanceType.getInstanceType())) {
+                return this.priorities[i];
+            }
+        }
+        return DEFAULT_PRIORITY;
+    }
+
+    /**
+     * @return a new matcher of the service types. Matchers are not thread-safe
+     *         when scanning raw packets, hence a new one per user.
+     */
+    public ServiceTypeMatcher createMatcher() {
+        return new ServiceTypeMatcher(this.serviceTypes);
+    }
+}
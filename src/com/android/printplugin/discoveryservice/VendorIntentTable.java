@@ -0,0 +1,101 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.text.TextUtils;
+import com.android.printplugin.discovery.R;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Maps the vendor advertised by a printer to the intent installing its print
+ * plugin. The known_print_plugin_vendors resources are looked up once, when
+ * the table is built, into a hash table keyed by lower case vendor ID.
+ * Instances are immutable and can be shared by discovery tasks; build a new
+ * one when the configuration changes.
+ */
+public final class VendorIntentTable {
+
+    private final Resources resources;
+    private final HashMap<String, Intent> installIntents = new HashMap<String, Intent>();
+
+    private VendorIntentTable(Resources resources) {
+        this.resources = resources;
+    }
+
+    public static VendorIntentTable build(Context context) {
+        final Resources resources = context.getResources();
+        VendorIntentTable table = new VendorIntentTable(resources);
+        String[] knownVendors = resources.getStringArray(R.array.known_print_plugin_vendors);
+
+        if (knownVendors == null) {
+            return table;
+        }
+        for (String knownVendor : knownVendors) {
+            String vendorIDsResource = resources.getString(R.string.known_print_plugin_ids_for_vendor, knownVendor);
+            String vendorPackageResource = resources.getString(R.string.print_plugin_package_for_vendor, knownVendor);
+
+            int vendorIDsResourceID = resources.getIdentifier(vendorIDsResource, "array", context.getPackageName());
+            int vendorPackageResourceID = resources.getIdentifier(vendorPackageResource, "string", context.getPackageName());
+
+            if ((vendorIDsResourceID == 0) || (vendorPackageResourceID == 0)) {
+                continue;
+            }
+            String[] vendorIDs = resources.getStringArray(vendorIDsResourceID);
+
+            if (vendorIDs == null) {
+                continue;
+            }
+            String vendorPackageName = resources.getString(vendorPackageResourceID);
+            Intent installIntent = new Intent(Intent.ACTION_VIEW,
+                    Uri.parse(resources.getString(R.string.market_package_search, vendorPackageName)))
+                    .putExtra(Intent.EXTRA_INSTALLER_PACKAGE_NAME, vendorPackageName);
+
+            for (String vendorID : vendorIDs) {
+                String key = vendorID.toLowerCase(Locale.US);
+
+                // The first vendor listing an ID keeps it.
+                if (!table.installIntents.containsKey(key)) {
+                    table.installIntents.put(key, installIntent);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return a new intent installing the print plugin of the vendor, or
+     *         searching the market for one if the vendor is not known, or null
+     *         if there is no vendor.
+     */
+    public Intent getInstallIntent(String vendor) {
+        if (TextUtils.isEmpty(vendor)) {
+            return null;
+        }
+        Intent installIntent = this.installIntents.get(vendor.toLowerCase(Locale.US));
+
+        if (installIntent != null) {
+            return new Intent(installIntent);
+        }
+        return new Intent(Intent.ACTION_VIEW,
+                Uri.parse(this.resources.getString(R.string.market_generic_search, vendor)));
+    }
+}
@@ -21,23 +21,34 @@ import android.net.DhcpInfo;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 
 
 public class WifiUtils {
 
     private static final String EthernetInterface = "eth0";
-	private static final int MULTICAST_TTL = 255;
 	
+	// RFC 6762 section 11: receivers may drop mDNS packets of another TTL.
+	private static final int MULTICAST_TTL = 255;
+
 	private static final String TAG = WifiUtils.class.getSimpleName();
 	
     private Context context;
@@ -131,22 +142,79 @@ public class WifiUtils {
     }
     
     /**
-     * Ensures that the caller receives an usable multicast socket.
-     * In case the network configuration does not have a default gateway
-     * set, the multicast socket might not work. This is the case when
-     * the device is connected to a Wireless Direct printer. In that
-     * cases, force a network interface into the socket.
+     * Creates a non-blocking channel sending multicast through the given
+     * interface, or through the one the system picks if null. Channels cannot
+     * set their multicast interface on this API level; binding the channel to
+     * an IPv4 address of the interface does it instead, since Linux sends
+     * multicast from a bound address through the interface owning it. The
+     * multicast TTL is set to 255, as mDNS requires.
      *
-     * @return A ready-to-use multicast socket.
+     * @return A ready-to-use, unconnected channel.
+     */
+    public static DatagramChannel createMulticastChannel(NetworkInterface netIf)
+            throws SocketException, IOException {
+        DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            InetAddress address = (netIf != null) ? getIPv4Address(netIf) : null;
+
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(address, 0));
+            setMulticastTimeToLive(channel, MULTICAST_TTL);
+        } catch (IOException exc) {
+            channel.close();
+            throw exc;
+        }
+        return channel;
+    }
+
+    /*
+     * Channels have no multicast TTL setter on this API level, so the socket
+     * option is set on a duplicate of the socket descriptor, through
+     * android.system.Os from API 21 and through libcore before. Should that
+     * fail, the channel keeps the default TTL of 1.
      */
-    public static MulticastSocket createMulticastSocket(Context context)
-            throws UnknownHostException, SocketException, IOException {
-        MulticastSocket multicastSocket = new MulticastSocket();
+    private static void setMulticastTimeToLive(DatagramChannel channel, int ttl) throws IOException {
+        ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(channel.socket());
 
+        if (fd == null) {
+            Log.w(TAG, "Cannot set the multicast TTL: no socket descriptor.");
+            return;
+        }
+        try {
+            Class<?> osClass;
+            Class<?> constants;
+            Object os = null;
+
+            try {
+                osClass = Class.forName("android.system.Os");
+                constants = Class.forName("android.system.OsConstants");
+            } catch (ClassNotFoundException exc) {
+                osClass = Class.forName("libcore.io.Os");
+                constants = Class.forName("libcore.io.OsConstants");
+                os = Class.forName("libcore.io.Libcore").getField("os").get(null);
+            }
+            osClass.getMethod("setsockoptInt", FileDescriptor.class, int.class, int.class, int.class)
+                    .invoke(os, fd.getFileDescriptor(), constants.getField("IPPROTO_IP").getInt(null),
+                            constants.getField("IP_MULTICAST_TTL").getInt(null), ttl);
+        } catch (Exception exc) {
+            Log.w(TAG, "Cannot set the multicast TTL.", exc);
+        } finally {
+            fd.close();
+        }
+    }
+
+    /**
+     * @return the interface the default discovery channel is created on, see
+     *         {@link #createMulticastChannel}: ethernet when connected, the
+     *         Wi-Fi interface when connected to a Wireless Direct printer, or
+     *         else null, letting the system pick.
+     */
+    public static NetworkInterface getDefaultMulticastInterface(Context context)
+            throws UnknownHostException, SocketException {
         if (connectedToEthernet(context)) {
-            NetworkInterface netIf = NetworkInterface.getByName("eth0");
-            if (netIf != null)
-                multicastSocket.setNetworkInterface(netIf);
+            return NetworkInterface.getByName(EthernetInterface);
         }
         else if (isWirelessDirect(context)) {
             WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
@@ -158,13 +226,138 @@ public class WifiUtils {
                     (byte) (intaddr >> 16 & 0xff),
                     (byte) (intaddr >> 24 & 0xff)};
             InetAddress addr = InetAddress.getByAddress(byteaddr);
-            NetworkInterface netIf = NetworkInterface.getByInetAddress(addr);
 
-            multicastSocket.setNetworkInterface(netIf);
+            return NetworkInterface.getByInetAddress(addr);
+        }
+        return null;
+    }
+
+    /**
+     * Lists the interfaces multicast discovery can run on: up, not loopback
+     * nor point-to-point (e.g. mobile data), supporting multicast, and with an
+     * IPv4 address to send the queries from. Both ethernet and Wi-Fi are
+     * listed when connected, and so is the interface of a Wi-Fi Direct group.
+     *
+     * @return the interfaces, none if they cannot be listed.
+     */
+    public static List<NetworkInterface> getMulticastInterfaces() {
+        ArrayList<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+
+        try {
+            Enumeration<NetworkInterface> allInterfaces = NetworkInterface.getNetworkInterfaces();
+
+            if (allInterfaces == null) {
+                return interfaces;
+            }
+            for (NetworkInterface netIf : Collections.list(allInterfaces)) {
+                if (netIf.isUp() && !netIf.isLoopback() && !netIf.isPointToPoint()
+                        && netIf.supportsMulticast() && (getIPv4Address(netIf) != null)) {
+                    interfaces.add(netIf);
+                }
+            }
+        } catch (SocketException exc) {
+            Log.w(TAG, "Could not list the network interfaces.", exc);
+        }
+        return interfaces;
+    }
+
+    private static InetAddress getIPv4Address(NetworkInterface netIf) {
+        for (InterfaceAddress address : netIf.getInterfaceAddresses()) {
+            if (address.getAddress() instanceof Inet4Address) {
+                return address.getAddress();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param interfaceAddresses the addresses of the interface, as listed by
+     *            {@link NetworkInterface#getInterfaceAddresses()}
+     * @return true if the address is on the subnet of one of the interface
+     *         addresses, or is an IPv6 address scoped to the interface.
+     */
+    public static boolean isOnLink(NetworkInterface netIf, List<InterfaceAddress> interfaceAddresses,
+            InetAddress address) {
+        if (address instanceof Inet6Address) {
+            NetworkInterface scope = ((Inet6Address) address).getScopedInterface();
+
+            if (scope != null) {
+                return scope.getName().equals(netIf.getName());
+            }
+        }
+        byte[] bytes = address.getAddress();
+
+        for (InterfaceAddress interfaceAddress : interfaceAddresses) {
+            if (isOnSubnet(interfaceAddress.getAddress().getAddress(),
+                    interfaceAddress.getNetworkPrefixLength(), bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOnSubnet(byte[] network, int prefixLength, byte[] address) {
+        if ((network.length != address.length) || (prefixLength > 8 * address.length)) {
+            return false;
+        }
+        for (int i = 0; (8 * i) < prefixLength; i++) {
+            int bits = Math.min(8, prefixLength - 8 * i);
+            int mask = (0xff << (8 - bits)) & 0xff;
+
+            if (((network[i] ^ address[i]) & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a socket receiving the mDNS traffic of the network: bound to
+     * the mDNS port, shared with the system responder (SO_REUSEADDR), and
+     * member of the mDNS multicast group on each of the given interfaces, or
+     * on the interface the default {@link #createMulticastChannel} channel
+     * sends through if none is given.
+     *
+     * On Wi-Fi, multicast packets are only received while a multicast lock is
+     * held, see {@link #createMulticastLock}.
+     */
+    public static MulticastSocket createMulticastListenerSocket(Context context, InetAddress group, int port,
+            List<NetworkInterface> interfaces) throws UnknownHostException, SocketException, IOException {
+        MulticastSocket multicastSocket = new MulticastSocket(null);
+
+        try {
+            multicastSocket.setReuseAddress(true);
+            multicastSocket.bind(new InetSocketAddress(port));
+            if (interfaces.isEmpty()) {
+                selectNetworkInterface(context, multicastSocket);
+                multicastSocket.joinGroup(group);
+            }
+            for (NetworkInterface netIf : interfaces) {
+                multicastSocket.joinGroup(new InetSocketAddress(group, port), netIf);
+            }
+        } catch (IOException exc) {
+            multicastSocket.close();
+            throw exc;
         }
-        multicastSocket.setTimeToLive(MULTICAST_TTL);
         return multicastSocket;
     }
+
+    public static WifiManager.MulticastLock createMulticastLock(Context context) {
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        WifiManager.MulticastLock lock = wifiManager.createMulticastLock(TAG);
+
+        lock.setReferenceCounted(false);
+        return lock;
+    }
+
+    private static void selectNetworkInterface(Context context, MulticastSocket multicastSocket)
+            throws UnknownHostException, SocketException {
+        NetworkInterface netIf = getDefaultMulticastInterface(context);
+
+        if (netIf != null) {
+            multicastSocket.setNetworkInterface(netIf);
+        }
+    }
     
     public static boolean isWirelessDirect(Context context) {
         ConnectivityManager connManager =
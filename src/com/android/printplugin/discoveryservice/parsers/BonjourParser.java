@@ -21,6 +21,7 @@ import android.util.Log;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class BonjourParser {
@@ -41,20 +42,24 @@ public class BonjourParser {
     public static final String TRANSPARENT = "Transparent";
     public static final String BINARY = "Binary";
     public static final String TBCP = "TBCP";
+    public static final String UUID = "UUID";
+    public static final String COLOR = "Color";
+    public static final String DUPLEX = "Duplex";
 
     private static final String VALUE_ENCODING = "UTF-8";
-    private static final String IPP_SERVICE_NAME = "_ipp._tcp";
-    private static final String PDL_SERVICE_NAME = "_pdl-datastream._tcp";
-
-    private static final String PRINTER_SERVICE_NAME = "_printer._tcp";
-
 
     private static final int 	IPV4_LENGTH = 4;
 
     private DnsService service;
+    private ServiceTypeMatcher serviceTypes;
+    private PrinterAttributes printerAttributes;
 
-    public BonjourParser(DnsService service) {
+    /**
+     * @param serviceTypes the supported service types.
+     */
+    public BonjourParser(DnsService service, ServiceTypeMatcher serviceTypes) {
         this.service = service;
+        this.serviceTypes = serviceTypes;
     }
 
     public String getBonjourName() {
@@ -65,53 +70,86 @@ public class BonjourParser {
         return this.service.getHostname().getLabels()[0];
     }
 
+    /**
+     * @return the first of the addresses returned by {@link #getAddresses()}.
+     */
     public InetAddress getAddress() throws BonjourException {
-        byte[] address = this.getFirstIpv4Address();
-
-        try {
-            return InetAddress.getByAddress(address);
-        } catch (UnknownHostException exc) {
-            throw new BonjourException("Printer address is unknown host: "
-                    + Arrays.toString(address), exc);
-        }
+        return this.getAddresses()[0];
     }
 
-    private byte[] getFirstIpv4Address() {
+    /**
+     * @return all the addresses of the service host, the IPv4 ones first,
+     *         each family in the order of the records.
+     * @throws BonjourException if none is valid.
+     */
+    public InetAddress[] getAddresses() throws BonjourException {
         byte[][] addresses = this.service.getAddresses();
+        ArrayList<InetAddress> inetAddresses = new ArrayList<InetAddress>(addresses.length);
 
+        this.addAddresses(addresses, true, inetAddresses);
+        this.addAddresses(addresses, false, inetAddresses);
+        if (inetAddresses.isEmpty()) {
+            throw new BonjourException("Printer has no valid address.");
+        }
+        return inetAddresses.toArray(new InetAddress[inetAddresses.size()]);
+    }
+
+    private void addAddresses(byte[][] addresses, boolean ipv4, ArrayList<InetAddress> inetAddresses) {
         for (byte[] address : addresses) {
-            if (IPV4_LENGTH == address.length) {
-                return address;
+            if ((IPV4_LENGTH == address.length) == ipv4) {
+                try {
+                    inetAddresses.add(InetAddress.getByAddress(address));
+                } catch (UnknownHostException exc) {
+                    Log.w(TAG, "Ignoring invalid printer address: " + Arrays.toString(address));
+                }
             }
         }
-        Log.w(TAG, "Could not find any 4 byte address. Will return the first one of the list: "
-                + Arrays.toString(addresses[0]));
-        return addresses[0];
+    }
+
+    public int getPort() {
+        return this.service.getPort();
     }
 
     public String getModel() throws BonjourException {
-        return this.getAttribute(TY);
+        return this.getPrinterAttributes().getModel();
     }
 
     public String getVendor() throws BonjourException {
-        String vendor = this.getAttribute(USB_MFG);
-        if (TextUtils.isEmpty(vendor))
-            vendor = this.getAttribute(MFG);
-        return vendor;
+        return this.getPrinterAttributes().getVendor();
     }
 
     public boolean isPrinter() throws BonjourException {
-        if (this.isSupportedService()) {
-            String pdlValue = this.getAttribute(PDL);
-            return !TextUtils.isEmpty(pdlValue);
+        ServiceType serviceType = this.getServiceType();
+
+        // A scanning service may list document formats too.
+        if ((serviceType != null) && !serviceType.isScanner()) {
+            return this.getPrinterAttributes().hasDocumentFormats();
         }
         return false;
     }
 
-    private boolean isSupportedService() {
-        String serviceName = this.service.getName().toString();
-        Log.d(TAG, "serviceName: " + serviceName);
-        return serviceName.contains(IPP_SERVICE_NAME) || serviceName.contains(PDL_SERVICE_NAME) || serviceName.contains(PRINTER_SERVICE_NAME);
+    /**
+     * @return the printer attributes of the TXT record, decoded on the first
+     *         call.
+     */
+    public PrinterAttributes getPrinterAttributes() throws BonjourException {
+        if (this.printerAttributes == null) {
+            try {
+                this.printerAttributes = PrinterAttributes.decode(this.service.getAttributes());
+            } catch (UnsupportedEncodingException exc) {
+                throw new BonjourException("Unsupported encoding to read attribute value: "
+                        + VALUE_ENCODING, exc);
+            }
+        }
+        return this.printerAttributes;
+    }
+
+    /**
+     * @return the supported service type the service is an instance of, or
+     *         null if it is not a supported one.
+     */
+    public ServiceType getServiceType() {
+        return this.serviceTypes.match(this.service.getName());
     }
 
     public boolean hasAttribute(String key) {
@@ -119,13 +157,8 @@ public class BonjourParser {
     }
 
     public String getAttribute(String key) throws BonjourException {
-        byte[] value = this.service.getAttributes().get(key);
-
-        if (value == null) {
-            return null;
-        }
         try {
-            return new String(value, VALUE_ENCODING);
+            return this.service.getAttributes().getString(key);
         } catch (UnsupportedEncodingException exc) {
             throw new BonjourException("Unsupported encoding to read attribute value: "
                     + VALUE_ENCODING, exc);
@@ -15,6 +15,7 @@ limitations under the License.
  */
 package com.android.printplugin.discoveryservice.parsers;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -67,6 +68,10 @@ public class DnsPacket {
             this.code = code;
         }
 
+        public int getCode() {
+            return this.code;
+        }
+
         public static ResourceType valueOf(int code) {
             for (ResourceType rt : values()) {
                 if (rt.code == code) {
@@ -84,6 +89,11 @@ public class DnsPacket {
     // draft on Multicast DNS - Cheshire.
     private static final int RRCLASS_MASK = 0x00007FFF;
 
+    // TC bit of the header flags. In a legacy unicast mDNS response it tells
+    // that the responder left records out, and no continuation follows; in a
+    // multicast response it is ignored (RFC 6762, section 18.5).
+    public static final int FLAG_TRUNCATED = 0x0200;
+
     private int id;
     private int flags;
     private Question[] questions;
@@ -109,6 +119,10 @@ public class DnsPacket {
         return this.flags;
     }
 
+    public boolean isTruncated() {
+        return (this.flags & FLAG_TRUNCATED) != 0;
+    }
+
     public Question[] getQuestions() {
         return this.questions;
     }
@@ -136,9 +150,24 @@ public class DnsPacket {
         private NameSection[] sections;
         private String[] labels;
         private String string;
+        private int hash;
+        private int encodedLength;
 
         public CompressedName(NameSection[] sections) {
+            this(sections, -1);
+        }
+
+        public CompressedName(NameSection[] sections, int encodedLength) {
             this.sections = sections;
+            this.encodedLength = encodedLength;
+        }
+
+        /**
+         * @return the size of the name once all pointers are expanded, or -1
+         *         if it is not known.
+         */
+        public int getEncodedLength() {
+            return this.encodedLength;
         }
 
         public int getSizeInBytes() {
@@ -188,12 +217,18 @@ public class DnsPacket {
             if (!(thatObject instanceof CompressedName)) {
                 return false;
             }
+            if (this.hashCode() != thatObject.hashCode()) {
+                return false;
+            }
             return this.toString().equals(thatObject.toString());
         }
 
         @Override
         public int hashCode() {
-            return this.toString().hashCode();
+            if (this.hash == 0) {
+                this.hash = this.toString().hashCode();
+            }
+            return this.hash;
         }
     }
 
@@ -210,17 +245,27 @@ public class DnsPacket {
 
     public static class NameLabel implements NameSection {
         private String string;
+        private int sizeInBytes;
+        private String[] labels;
 
         public NameLabel(String string) {
+            this(string, string.length() + 1);
+        }
+
+        public NameLabel(String string, int sizeInBytes) {
             this.string = string;
+            this.sizeInBytes = sizeInBytes;
         }
 
         public int getSizeInBytes() {
-            return this.string.length() + 1;
+            return this.sizeInBytes;
         }
 
         public String[] getLabels() {
-            return new String[] {this.string};
+            if (this.labels == null) {
+                this.labels = new String[] {this.string};
+            }
+            return this.labels;
         }
 
         public boolean isEmpty() {
@@ -245,6 +290,17 @@ public class DnsPacket {
             this.pointedName = pointedName;
         }
 
+        /**
+         * @return the expanded size of the pointed name, or 0 if it is not
+         *         known.
+         */
+        public int getEncodedLength() {
+            if (this.pointedName instanceof CompressedName) {
+                return Math.max(0, ((CompressedName) this.pointedName).getEncodedLength());
+            }
+            return 0;
+        }
+
         public int getSizeInBytes() {
             return 2;
         }
@@ -329,33 +385,113 @@ public class DnsPacket {
         public int getTtl() {
             return this.ttl;
         }
+
+        /**
+         * Makes sure the entry does not reference the buffer it was parsed
+         * from anymore, so that it can outlive it.
+         */
+        public void detach() {
+        }
+
+        /**
+         * @return true if both entries have the same name, type, class and
+         *         data, i.e. they describe the same resource record, possibly
+         *         with different TTLs.
+         */
+        public boolean isSameRecord(Entry that) {
+            return (that != null) && (this.getType() == that.getType())
+                    && (this.getClazz() == that.getClazz()) && this.getName().equals(that.getName())
+                    && this.hasSameData(that);
+        }
+
+        protected abstract boolean hasSameData(Entry that);
     }
 
 
-    public static class GenericEntry extends Entry {
+    /**
+     * Entry whose payload is kept as a range of the packet buffer and only
+     * copied into an array the first time it is requested.
+     */
+    public static abstract class DataEntry extends Entry {
+        private ByteBuffer source;
+        private int dataOffset;
+        private int dataLength;
         private byte[] data;
 
-        public GenericEntry(Name name, ResourceType type, int clazz, int ttl, byte[] data) {
+        protected DataEntry(Name name, ResourceType type, int clazz, int ttl, byte[] data) {
             super(name, type, clazz, ttl);
             this.data = data;
+            this.dataLength = data.length;
         }
 
-        public byte[] getData() {
+        protected DataEntry(Name name, ResourceType type, int clazz, int ttl, ByteBuffer source,
+                int dataOffset, int dataLength) {
+            super(name, type, clazz, ttl);
+            this.source = source;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        public int getDataLength() {
+            return this.dataLength;
+        }
+
+        protected byte[] getBytes() {
+            if (this.data == null) {
+                byte[] bytes = new byte[this.dataLength];
+                ByteBuffer buffer = this.source.duplicate();
+
+                buffer.position(this.dataOffset);
+                buffer.get(bytes);
+                this.data = bytes;
+                this.source = null;
+            }
             return this.data;
         }
+
+        @Override
+        public void detach() {
+            this.getBytes();
+        }
+
+        @Override
+        protected boolean hasSameData(Entry that) {
+            return (that instanceof DataEntry)
+                    && Arrays.equals(this.getBytes(), ((DataEntry) that).getBytes());
+        }
     }
 
 
-    public static class Address extends Entry {
-        private byte[] address;
+    public static class GenericEntry extends DataEntry {
+
+        public GenericEntry(Name name, ResourceType type, int clazz, int ttl, byte[] data) {
+            super(name, type, clazz, ttl, data);
+        }
+
+        public GenericEntry(Name name, ResourceType type, int clazz, int ttl, ByteBuffer source,
+                int dataOffset, int dataLength) {
+            super(name, type, clazz, ttl, source, dataOffset, dataLength);
+        }
+
+        public byte[] getData() {
+            return this.getBytes();
+        }
+    }
+
+
+    public static class Address extends DataEntry {
 
         public Address(Name name, ResourceType type, int clazz, int ttl, byte[] bytes) {
-            super(name, type, clazz, ttl);
-            this.address = bytes;
+            super(name, type, clazz, ttl, bytes);
+        }
+
+        public Address(Name name, ResourceType type, int clazz, int ttl, ByteBuffer source,
+                int dataOffset, int dataLength) {
+            super(name, type, clazz, ttl, source, dataOffset, dataLength);
         }
 
         public byte[] getAddress() {
-            return this.address;
+            return this.getBytes();
         }
     }
 
@@ -371,19 +507,27 @@ public class DnsPacket {
         public Name getPointedName() {
             return this.pointedName;
         }
+
+        @Override
+        protected boolean hasSameData(Entry that) {
+            return (that instanceof Ptr) && this.pointedName.equals(((Ptr) that).pointedName);
+        }
     }
 
 
-    public static class Txt extends Entry {
-        private byte[] text;
+    public static class Txt extends DataEntry {
 
         public Txt(Name name, ResourceType type, int clazz, int ttl, byte[] bytes) {
-            super(name, type, clazz, ttl);
-            this.text = bytes;
+            super(name, type, clazz, ttl, bytes);
+        }
+
+        public Txt(Name name, ResourceType type, int clazz, int ttl, ByteBuffer source,
+                int dataOffset, int dataLength) {
+            super(name, type, clazz, ttl, source, dataOffset, dataLength);
         }
 
         public byte[] getText() {
-            return this.text;
+            return this.getBytes();
         }
     }
 
@@ -418,5 +562,16 @@ public class DnsPacket {
         public Name getTarget() {
             return this.target;
         }
+
+        @Override
+        protected boolean hasSameData(Entry that) {
+            if (!(that instanceof Srv)) {
+                return false;
+            }
+            Srv srv = (Srv) that;
+
+            return (this.priority == srv.priority) && (this.weight == srv.weight)
+                    && (this.port == srv.port) && this.target.equals(srv.target);
+        }
     }
 }
@@ -15,31 +15,72 @@ limitations under the License.
  */
 package com.android.printplugin.discoveryservice.parsers;
 
-import android.util.Log;
+import android.util.SparseArray;
 
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+/**
+ * Decodes DNS messages directly from a {@link ByteBuffer}, which can either be
+ * a heap or a direct buffer. Records are decoded into a reusable
+ * {@link DnsRecordView} and only turned into {@link DnsPacket.Entry} objects
+ * afterwards; their payloads keep pointing into the buffer until somebody
+ * actually asks for them.
+ */
 public class DnsParser {
-    private static final String TAG = DnsParser.class.getSimpleName();
-
     private static final int MINIMUM_PACKET_SIZE = 12;
+    private static final int MINIMUM_QUESTION_SIZE = 5;
+    private static final int MINIMUM_RECORD_SIZE = 11;
     private static final int BYTE_LENGTH = 8;
     private static final int INT16_LENGTH = 16;
     private static final int INT32_LENGTH = 32;
     private static final int BYTE_MASK = 0x000000FF;
-    private static final int NAME_POINTER_MASK = 0xFFFFFFC0;
+    private static final int LABEL_TYPE_MASK = 0xC0;
+    private static final int LABEL_TYPE_NORMAL = 0x00;
+    private static final int LABEL_TYPE_POINTER = 0xC0;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_POINTER_HOPS = 32;
     private static final String NAME_ENCODING = "UTF-8";
 
-    private byte[] data;
+    private final DnsRecordView record = new DnsRecordView(this);
+
+    // Names already decoded in the current packet, keyed by their offset.
+    // Compression pointers resolve through this table, so a suffix shared by
+    // many records is decoded once and every name pointing to it reuses the
+    // same instance (along with its cached string and hash).
+    private final SparseArray<DnsPacket.CompressedName> nameTable =
+            new SparseArray<DnsPacket.CompressedName>();
+
+    private ByteBuffer data;
     private int length;
     private int offset;
 
-    public DnsPacket parse(DatagramPacket packet) throws DnsException {
-        this.data = packet.getData();
-        this.length = packet.getLength();
-        this.offset = packet.getOffset();
+    /**
+     * Parses the message between the buffer position and its limit. The buffer
+     * itself is not modified, but entries of the returned packet may keep a
+     * reference to it until they are {@link DnsPacket.Entry#detach() detached}.
+     */
+    public DnsPacket parse(ByteBuffer buffer) throws DnsException {
+        PacketBuilder builder = new PacketBuilder();
+
+        this.parse(buffer, builder);
+        return builder.build();
+    }
+
+    /**
+     * Walks the message once, reporting the header, every question and every
+     * record to the visitor. Records are handed out through a reused
+     * {@link DnsRecordView}, so nothing is allocated for the records the
+     * visitor does not turn into entries. Returning
+     * {@link DnsVisitor.Action#SKIP_SECTION} moves straight to the next
+     * section and {@link DnsVisitor.Action#STOP} ends the parsing.
+     */
+    public void parse(ByteBuffer buffer, DnsVisitor visitor) throws DnsException {
+        this.data = buffer.slice();
+        this.length = this.data.limit();
+        this.offset = 0;
+        this.nameTable.clear();
         if ((this.length - this.offset) < MINIMUM_PACKET_SIZE) {
             throw new DnsException("Invalid mDNS packet: insufficient data.");
         }
@@ -49,77 +90,137 @@ public class DnsParser {
         int nAnswers = this.parseUInt16();
         int nAuthorities = this.parseUInt16();
         int nAdditionals = this.parseUInt16();
-        DnsPacket.Question[] questions = this.parseQuestions(nQuestions);
-        DnsPacket.Entry[] answers = this.parseEntries(nAnswers);
-        DnsPacket.Entry[] authorities = this.parseEntries(nAuthorities);
-        DnsPacket.Entry[] additionals = this.parseEntries(nAdditionals);
-
-        return new DnsPacket(id, flags, questions, answers, authorities, additionals);
-    }
 
-    private DnsPacket.Question[] parseQuestions(int nQuestions) throws DnsException {
-        if (nQuestions > 0) {
-            ArrayList<DnsPacket.Question> buffer = new ArrayList<DnsPacket.Question>(nQuestions);
+        if (((nQuestions * MINIMUM_QUESTION_SIZE)
+                + ((nAnswers + nAuthorities + nAdditionals) * MINIMUM_RECORD_SIZE))
+                > (this.length - this.offset)) {
+            throw new DnsException("Invalid mDNS packet: record counts exceed packet size.");
+        }
+        DnsVisitor.Action action = visitor.onHeader(id, flags, nQuestions, nAnswers,
+                nAuthorities, nAdditionals);
 
-            for (int i = 0; i < nQuestions; i++) {
-                buffer.add(this.parseQuestion());
+        if (action == DnsVisitor.Action.STOP) {
+            return;
+        }
+        for (int i = 0; i < nQuestions; i++) {
+            this.parseQuestion(this.record);
+            if (action == DnsVisitor.Action.CONTINUE) {
+                action = visitor.onQuestion(this.record);
+                if (action == DnsVisitor.Action.STOP) {
+                    return;
+                }
             }
-            return buffer.toArray(new DnsPacket.Question[buffer.size()]);
         }
-        return new DnsPacket.Question[0];
+        if (this.parseRecords(DnsVisitor.Section.ANSWER, nAnswers, visitor)
+                && this.parseRecords(DnsVisitor.Section.AUTHORITY, nAuthorities, visitor)) {
+            this.parseRecords(DnsVisitor.Section.ADDITIONAL, nAdditionals, visitor);
+        }
     }
 
-    private final DnsPacket.Entry[] parseEntries(int nEntries) throws DnsException {
-        ArrayList<DnsPacket.Entry> entries = new ArrayList<DnsPacket.Entry>(nEntries);
-
-        for (int i = 0; i < nEntries; i++) {
-            entries.add(this.parseEntry());
+    /**
+     * @return false if the visitor asked to stop parsing.
+     */
+    private boolean parseRecords(DnsVisitor.Section section, int nRecords, DnsVisitor visitor)
+            throws DnsException {
+        DnsVisitor.Action action = DnsVisitor.Action.CONTINUE;
+
+        for (int i = 0; i < nRecords; i++) {
+            this.parseRecord(this.record);
+            if (action == DnsVisitor.Action.CONTINUE) {
+                action = visitor.onRecord(section, this.record);
+                if (action == DnsVisitor.Action.STOP) {
+                    return false;
+                }
+            }
         }
-        return entries.toArray(new DnsPacket.Entry[entries.size()]);
+        return true;
     }
 
-    private final DnsPacket.Question parseQuestion() throws DnsException {
-        DnsPacket.Name name = this.parseName();
+    private void parseQuestion(DnsRecordView view) throws DnsException {
+        int nameOffset = this.offset;
+
+        this.skipName();
         int type = this.parseUInt16();
         int clazz = this.parseUInt16();
-        DnsPacket.ResourceType resourceType = DnsPacket.ResourceType.valueOf(type);
 
-        return new DnsPacket.Question(name, resourceType, clazz);
+        view.set(nameOffset, DnsPacket.ResourceType.valueOf(type), clazz, 0, this.offset, 0);
+    }
+
+    DnsPacket.Question createQuestion(DnsRecordView view) throws DnsException {
+        return new DnsPacket.Question(this.readName(view.getNameOffset()), view.getType(),
+                view.getRawClazz());
     }
 
-    private final DnsPacket.Entry parseEntry() throws DnsException {
-        DnsPacket.Name name = this.parseName();
+    /**
+     * Decodes the fixed part of the record at the current offset into the
+     * given view and moves past its data, without touching the data itself.
+     */
+    private void parseRecord(DnsRecordView view) throws DnsException {
+        int nameOffset = this.offset;
+
+        this.skipName();
         int type = this.parseUInt16();
         int clazz = this.parseUInt16();
         int ttl = this.parseInt32();
         int len = this.parseUInt16();
-        DnsPacket.ResourceType resourceType = DnsPacket.ResourceType.valueOf(type);
+
+        if ((this.length - this.offset) < len) {
+            throw new DnsException("Failed to read record data: insufficient data.");
+        }
+        view.set(nameOffset, DnsPacket.ResourceType.valueOf(type), clazz, ttl, this.offset, len);
+        this.offset += len;
+    }
+
+    /**
+     * Builds the entry described by the given view. Names are decoded here, but
+     * address, text and unknown payloads stay in the buffer until requested.
+     */
+    DnsPacket.Entry createEntry(DnsRecordView view) throws DnsException {
+        DnsPacket.Name name = this.readName(view.getNameOffset());
+        DnsPacket.ResourceType resourceType = view.getType();
+        int clazz = view.getRawClazz();
+        int ttl = view.getTtl();
+        int dataOffset = view.getDataOffset();
+        int len = view.getDataLength();
 
         switch (resourceType) {
             case A:
             case AAAA:
-                return new DnsPacket.Address(name, resourceType, clazz, ttl, this.parseBytes(len));
+                return new DnsPacket.Address(name, resourceType, clazz, ttl, this.data, dataOffset, len);
             case CNAME:
             case PTR:
-                return new DnsPacket.Ptr(name, resourceType, clazz, ttl, this.parseName());
+                return new DnsPacket.Ptr(name, resourceType, clazz, ttl, this.readName(dataOffset));
             case TXT:
-                return new DnsPacket.Txt(name, resourceType, clazz, ttl, this.parseBytes(len));
+                return new DnsPacket.Txt(name, resourceType, clazz, ttl, this.data, dataOffset, len);
             case SRV:
-                int priority = this.parseUInt16();
-                int weight = this.parseUInt16();
-                int port = this.parseUInt16();
-                DnsPacket.Name target = this.parseName();
+                int priority = this.readUInt16(dataOffset);
+                int weight = this.readUInt16(dataOffset + 2);
+                int port = this.readUInt16(dataOffset + 4);
+                DnsPacket.Name target = this.readName(dataOffset + 6);
 
                 return new DnsPacket.Srv(name, resourceType, clazz, ttl, priority, weight,
                         port, target);
             default:
                 return new DnsPacket.GenericEntry(name, resourceType, clazz, ttl,
-                        this.parseBytes(len));
+                        this.data, dataOffset, len);
         }
     }
 
+    /**
+     * Copies record data out of the buffer. Used by views that need the bytes
+     * of a record without building an entry.
+     */
+    byte[] copyBytes(int dataOffset, int len) {
+        byte[] bytes = new byte[len];
+        ByteBuffer source = this.data.duplicate();
+
+        source.position(dataOffset);
+        source.get(bytes);
+        return bytes;
+    }
+
     private final int parseUInt8() throws DnsException {
-        return this.data[this.offset++] & BYTE_MASK;
+        return this.data.get(this.offset++) & BYTE_MASK;
     }
 
     private final int parseUInt16() throws DnsException {
@@ -145,73 +246,178 @@ public class DnsParser {
         return intNumber;
     }
 
-    private final byte[] parseBytes(int len) throws DnsException {
-        if ((this.length - this.offset) < len) {
-            throw new DnsException("Failed to read byte array: insufficient data.");
+    private int readUInt16(int dataOffset) throws DnsException {
+        if ((this.length - dataOffset) < 2) {
+            throw new DnsException("Failed to read an int field: insufficient data.");
         }
-        byte[] bytes = new byte[len];
+        return ((this.data.get(dataOffset) & BYTE_MASK) << BYTE_LENGTH)
+                | (this.data.get(dataOffset + 1) & BYTE_MASK);
+    }
 
-        System.arraycopy(this.data, this.offset, bytes, 0, len);
-        this.offset += len;
-        return bytes;
+    /**
+     * Moves past the name at the current offset without decoding it.
+     */
+    private void skipName() throws DnsException {
+        int labelLength;
+
+        do {
+            if ((this.length - this.offset) < 1) {
+                throw new DnsException("Failed to skip a name: insufficient data.");
+            }
+            labelLength = this.data.get(this.offset) & BYTE_MASK;
+            if ((labelLength & LABEL_TYPE_MASK) == LABEL_TYPE_POINTER) {
+                this.offset += 2;
+                return;
+            } else if ((labelLength & LABEL_TYPE_MASK) != LABEL_TYPE_NORMAL) {
+                throw new DnsException("Unsupported label type: " + labelLength);
+            }
+            this.offset += labelLength + 1;
+        } while (labelLength != 0);
     }
 
-    private DnsPacket.CompressedName parseName() throws DnsException {
-        if ((this.length - this.offset) < 1) {
-            throw new DnsException("Failed to read a name: insufficient data.");
-        }
-        DnsPacket.CompressedName name = this.readName(this.offset);
+    DnsPacket.CompressedName readName(int nameDataOffset) throws DnsException {
+        return this.readName(nameDataOffset, 0);
+    }
 
-        this.offset += name.getSizeInBytes();
+    private DnsPacket.CompressedName readName(int nameDataOffset, int pointerHops)
+            throws DnsException {
+        DnsPacket.CompressedName name = this.nameTable.get(nameDataOffset);
+
+        if (name == null) {
+            name = this.decodeName(nameDataOffset, pointerHops);
+            this.nameTable.put(nameDataOffset, name);
+        }
         return name;
     }
 
-    private DnsPacket.CompressedName readName(int nameDataOffset) throws DnsException {
+    /*
+     * Decoding cost is bounded: labels are bounds checked, a name can not
+     * expand beyond MAX_NAME_LENGTH bytes, and a pointer must refer to data
+     * located before the name that contains it, so following pointers always
+     * moves backwards in the packet and can neither loop nor recurse more than
+     * MAX_POINTER_HOPS times.
+     */
+    private DnsPacket.CompressedName decodeName(int nameDataOffset, int pointerHops)
+            throws DnsException {
         int dataOffset = nameDataOffset;
+        int nameLength = 0;
         ArrayList<DnsPacket.NameSection> sectionList = new ArrayList<DnsPacket.NameSection>();
         DnsPacket.NameSection section = null;
 
         do {
-            section = this.readNameSection(dataOffset);
+            if (dataOffset >= this.length) {
+                throw new DnsException("Failed to read a name: insufficient data.");
+            }
+            int labelLength = this.data.get(dataOffset) & BYTE_MASK;
+
+            if ((labelLength & LABEL_TYPE_MASK) == LABEL_TYPE_POINTER) {
+                DnsPacket.NamePointer pointer = this.readNamePointer(dataOffset, nameDataOffset,
+                        pointerHops);
+
+                nameLength += pointer.getEncodedLength();
+                section = pointer;
+            } else if ((labelLength & LABEL_TYPE_MASK) == LABEL_TYPE_NORMAL) {
+                section = this.readNameLabel(dataOffset, labelLength);
+                nameLength += section.getSizeInBytes();
+            } else {
+                throw new DnsException("Unsupported label type: " + labelLength);
+            }
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new DnsException("Invalid name: longer than " + MAX_NAME_LENGTH + " bytes.");
+            }
             sectionList.add(section);
             dataOffset += section.getSizeInBytes();
         } while (!section.isEmpty() && !section.isPointer());
-        return new DnsPacket.CompressedName(sectionList.toArray(new DnsPacket.NameSection[sectionList.size()]));
-    }
-
-    private DnsPacket.NameSection readNameSection(int dataOffset) throws DnsException {
-        byte labelLength = this.data[dataOffset];
-
-        if ((labelLength & NAME_POINTER_MASK) == NAME_POINTER_MASK) {
-            return this.readNamePointer(dataOffset);
-        } else if ((labelLength & NAME_POINTER_MASK) == 0) {
-            return this.readNameLabel(dataOffset, labelLength);
-        }
-        Log.w(TAG, "The two last bits are not 00 nor 11. Will consider it is a regular length: " + labelLength);
-        return this.readNameLabel(dataOffset, labelLength);
+        return new DnsPacket.CompressedName(
+                sectionList.toArray(new DnsPacket.NameSection[sectionList.size()]), nameLength);
     }
 
     private DnsPacket.NameLabel readNameLabel(int dataOffset, int labelLength) throws DnsException {
-        byte[] labelBuffer = new byte[labelLength];
+        String label;
 
-        System.arraycopy(this.data, dataOffset + 1, labelBuffer, 0, labelLength);
+        if ((this.length - dataOffset - 1) < labelLength) {
+            throw new DnsException("Failed to read a name label: insufficient data.");
+        }
         try {
-            return new DnsPacket.NameLabel(new String(labelBuffer, NAME_ENCODING));
+            if (this.data.hasArray()) {
+                label = new String(this.data.array(), this.data.arrayOffset() + dataOffset + 1,
+                        labelLength, NAME_ENCODING);
+            } else {
+                label = new String(this.copyBytes(dataOffset + 1, labelLength), NAME_ENCODING);
+            }
+            return new DnsPacket.NameLabel(label, labelLength + 1);
         } catch (UnsupportedEncodingException exc) {
             throw new DnsException("Unsupported encoding to parse DNS name: " + NAME_ENCODING, exc);
         }
     }
 
-    private DnsPacket.NamePointer readNamePointer(int dataOffset)  throws DnsException {
+    private DnsPacket.NamePointer readNamePointer(int dataOffset, int nameDataOffset,
+            int pointerHops) throws DnsException {
+        if ((this.length - dataOffset) < 2) {
+            throw new DnsException("Failed to read a name pointer: insufficient data.");
+        }
         int nameOffset = this.readNameOffset(dataOffset);
 
-        return new DnsPacket.NamePointer(this.readName(nameOffset));
+        if (nameOffset >= nameDataOffset) {
+            throw new DnsException("Invalid name pointer: " + nameOffset
+                    + " does not point before the name at " + nameDataOffset);
+        }
+        if (pointerHops >= MAX_POINTER_HOPS) {
+            throw new DnsException("Invalid name: more than " + MAX_POINTER_HOPS
+                    + " chained pointers.");
+        }
+        return new DnsPacket.NamePointer(this.readName(nameOffset, pointerHops + 1));
     }
 
     private int readNameOffset(int dataOffset) {
-        int first = (this.data[dataOffset] & ~NAME_POINTER_MASK);
-        int second = this.data[dataOffset + 1] & BYTE_MASK;
+        int first = (this.data.get(dataOffset) & ~LABEL_TYPE_MASK & BYTE_MASK);
+        int second = this.data.get(dataOffset + 1) & BYTE_MASK;
 
         return ((first << BYTE_LENGTH) | second);
     }
+
+    /**
+     * Visitor building a complete {@link DnsPacket}. Arrays are sized from the
+     * header counts, which were checked against the packet size beforehand.
+     */
+    private static class PacketBuilder implements DnsVisitor {
+        private int id;
+        private int flags;
+        private DnsPacket.Question[] questions;
+        private DnsPacket.Entry[][] sections;
+        private int nQuestions;
+        private int[] nEntries = new int[Section.values().length];
+
+        @Override
+        public Action onHeader(int id, int flags, int nQuestions, int nAnswers, int nAuthorities,
+                int nAdditionals) {
+            this.id = id;
+            this.flags = flags;
+            this.questions = new DnsPacket.Question[nQuestions];
+            this.sections = new DnsPacket.Entry[][] {
+                    new DnsPacket.Entry[nAnswers],
+                    new DnsPacket.Entry[nAuthorities],
+                    new DnsPacket.Entry[nAdditionals]};
+            return Action.CONTINUE;
+        }
+
+        @Override
+        public Action onQuestion(DnsRecordView question) throws DnsException {
+            this.questions[this.nQuestions++] = question.toQuestion();
+            return Action.CONTINUE;
+        }
+
+        @Override
+        public Action onRecord(Section section, DnsRecordView record) throws DnsException {
+            int index = section.ordinal();
+
+            this.sections[index][this.nEntries[index]++] = record.toEntry();
+            return Action.CONTINUE;
+        }
+
+        DnsPacket build() {
+            return new DnsPacket(this.id, this.flags, this.questions, this.sections[0],
+                    this.sections[1], this.sections[2]);
+        }
+    }
 }
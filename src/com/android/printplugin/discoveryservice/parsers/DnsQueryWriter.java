@@ -0,0 +1,255 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes mDNS queries: all the questions in one message, followed by the
+ * known answers (RFC 6762, section 7.1). When the known answers do not fit in
+ * one packet, they continue in further packets, all but the last one having
+ * the TC bit set (RFC 6762, section 7.2). Names are compressed within each
+ * packet.
+ */
+public class DnsQueryWriter {
+    private static final String NAME_ENCODING = "UTF-8";
+
+    private static final int HEADER_SIZE = 12;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final int POINTER_MASK = 0xC000;
+
+    private static class Question {
+        final String[] labels;
+        final int typeAndClass;
+
+        Question(String[] labels, int typeAndClass) {
+            this.labels = labels;
+            this.typeAndClass = typeAndClass;
+        }
+    }
+
+    private static class KnownAnswer {
+        final DnsPacket.Ptr ptr;
+        final int ttl;
+
+        KnownAnswer(DnsPacket.Ptr ptr, int ttl) {
+            this.ptr = ptr;
+            this.ttl = ttl;
+        }
+    }
+
+    private final int maxPacketSize;
+    private final ArrayList<Question> questions = new ArrayList<Question>();
+    private final ArrayList<KnownAnswer> knownAnswers = new ArrayList<KnownAnswer>();
+
+    /**
+     * @param maxPacketSize the size packets are kept under, except for a
+     *            single record too large to fit.
+     */
+    public DnsQueryWriter(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Adds a question asking for multicast responses (QM). The QU bit is only
+     * honoured in queries sent from the mDNS port, which these are not.
+     *
+     * @param name e.g. "_ipp._tcp.local"
+     */
+    public void addQuestion(String name, DnsPacket.ResourceType type) {
+        this.questions.add(new Question(name.split("\\."), (type.getCode() << 16) | CLASS_IN));
+    }
+
+    /**
+     * Adds a question asking for multicast responses (QM).
+     */
+    public void addQuestion(DnsPacket.Name name, DnsPacket.ResourceType type) {
+        this.questions.add(new Question(getLabels(name), (type.getCode() << 16) | CLASS_IN));
+    }
+
+    /**
+     * Lists a PTR record the querier already knows, so that its owner does
+     * not answer with it again.
+     *
+     * @param ttl the remaining TTL of the record, in seconds.
+     */
+    public void addKnownAnswer(DnsPacket.Ptr ptr, int ttl) {
+        this.knownAnswers.add(new KnownAnswer(ptr, ttl));
+    }
+
+    public List<byte[]> build() throws DnsException {
+        ArrayList<byte[]> packets = new ArrayList<byte[]>(1);
+        int nextAnswer = 0;
+
+        do {
+            PacketWriter writer = new PacketWriter();
+
+            if (packets.isEmpty()) {
+                for (Question question : this.questions) {
+                    writer.writeName(question.labels);
+                    writer.writeInt(question.typeAndClass);
+                    writer.nQuestions++;
+                }
+            }
+            while (nextAnswer < this.knownAnswers.size()) {
+                int mark = writer.size();
+
+                writer.writeAnswer(this.knownAnswers.get(nextAnswer));
+                if ((writer.size() > this.maxPacketSize)
+                        && ((writer.nAnswers > 0) || (writer.nQuestions > 0))) {
+                    writer.truncate(mark);
+                    break;
+                }
+                writer.nAnswers++;
+                nextAnswer++;
+            }
+            boolean truncated = (nextAnswer < this.knownAnswers.size());
+
+            packets.add(writer.toByteArray(truncated));
+        } while (nextAnswer < this.knownAnswers.size());
+        return packets;
+    }
+
+    private static String[] getLabels(DnsPacket.Name name) {
+        String[] labels = name.getLabels();
+        int end = labels.length;
+
+        // The root label is written by writeName.
+        while ((end > 0) && (labels[end - 1].length() == 0)) {
+            end--;
+        }
+        if (end == labels.length) {
+            return labels;
+        }
+        String[] trimmed = new String[end];
+
+        System.arraycopy(labels, 0, trimmed, 0, end);
+        return trimmed;
+    }
+
+    private static class PacketWriter extends ByteArrayOutputStream {
+        // Offset of the names, and their suffixes, already written.
+        private final HashMap<String, Integer> names = new HashMap<String, Integer>();
+        int nQuestions;
+        int nAnswers;
+
+        PacketWriter() {
+            super(512);
+            // The header is filled in last.
+            this.count = HEADER_SIZE;
+        }
+
+        void writeAnswer(KnownAnswer answer) throws DnsException {
+            this.writeName(getLabels(answer.ptr.getName()));
+            this.writeShort(DnsPacket.ResourceType.PTR.getCode());
+            this.writeShort(CLASS_IN);
+            this.writeInt(answer.ttl);
+            int lengthOffset = this.count;
+
+            this.writeShort(0);
+            this.writeName(getLabels(answer.ptr.getPointedName()));
+            int dataLength = this.count - lengthOffset - 2;
+
+            this.buf[lengthOffset] = (byte) (dataLength >> 8);
+            this.buf[lengthOffset + 1] = (byte) dataLength;
+        }
+
+        void writeName(String[] labels) throws DnsException {
+            for (int i = 0; i < labels.length; i++) {
+                String suffix = join(labels, i);
+                Integer offset = this.names.get(suffix);
+
+                if (offset != null) {
+                    this.writeShort(POINTER_MASK | offset.intValue());
+                    return;
+                }
+                if (this.count <= MAX_POINTER_OFFSET) {
+                    this.names.put(suffix, Integer.valueOf(this.count));
+                }
+                byte[] label = encode(labels[i]);
+
+                if ((label.length == 0) || (label.length > 63)) {
+                    throw new DnsException("Invalid DNS label length: " + label.length);
+                }
+                this.write(label.length);
+                this.write(label, 0, label.length);
+            }
+            this.write(0);
+        }
+
+        void writeShort(int value) {
+            this.write(value >> 8);
+            this.write(value);
+        }
+
+        void writeInt(int value) {
+            this.writeShort(value >>> 16);
+            this.writeShort(value & 0xFFFF);
+        }
+
+        /*
+         * Drops what was written after the mark, including the names it
+         * registered for compression.
+         */
+        void truncate(int mark) {
+            this.count = mark;
+            Iterator<Integer> iterator = this.names.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (iterator.next().intValue() >= mark) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        byte[] toByteArray(boolean truncated) {
+            byte[] packet = this.toByteArray();
+
+            // Transaction ID 0 and flags of a standard query.
+            packet[2] = (byte) (truncated ? (DnsPacket.FLAG_TRUNCATED >> 8) : 0);
+            packet[4] = (byte) (this.nQuestions >> 8);
+            packet[5] = (byte) this.nQuestions;
+            packet[6] = (byte) (this.nAnswers >> 8);
+            packet[7] = (byte) this.nAnswers;
+            return packet;
+        }
+
+        private static String join(String[] labels, int start) {
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = start; i < labels.length; i++) {
+                builder.append(labels[i].length()).append(':')
+                        .append(labels[i].toLowerCase(Locale.US));
+            }
+            return builder.toString();
+        }
+
+        private static byte[] encode(String label) throws DnsException {
+            try {
+                return label.getBytes(NAME_ENCODING);
+            } catch (UnsupportedEncodingException exc) {
+                throw new DnsException("Unsupported encoding to write DNS name: " + NAME_ENCODING, exc);
+            }
+        }
+    }
+}
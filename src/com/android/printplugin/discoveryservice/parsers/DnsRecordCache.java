@@ -0,0 +1,212 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Cache of mDNS resource records honoring their TTLs (RFC 6762, section 10).
+ * Expiry is driven by a {@link TimerWheel} advanced on each access, so there is
+ * no timer per record and no thread. Records received with the cache-flush bit
+ * replace the records with the same name and type received more than one
+ * second before them, and goodbye records (TTL 0) expire after one second.
+ *
+ * Instances are thread-safe.
+ */
+public class DnsRecordCache {
+    private static final String TAG = DnsRecordCache.class.getSimpleName();
+
+    private static final int MAX_RECORDS = 1024;
+    private static final int WHEEL_SLOTS = 512;
+    private static final long WHEEL_TICK = 1000;
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final int GOODBYE_TTL = 1;
+
+    private static class CachedRecord {
+        final DnsPacket.Entry entry;
+        final long receivedAt;
+        final long expiresAt;
+        TimerWheel.Timer<CachedRecord> timer;
+
+        CachedRecord(DnsPacket.Entry entry, long receivedAt, int ttl) {
+            this.entry = entry;
+            this.receivedAt = receivedAt;
+            this.expiresAt = receivedAt + (ttl * MILLIS_PER_SECOND);
+        }
+    }
+
+    /**
+     * A cached record with the time it has left to live.
+     */
+    public static final class FreshRecord {
+        private final DnsPacket.Entry entry;
+        private final int remainingTtl;
+
+        FreshRecord(DnsPacket.Entry entry, int remainingTtl) {
+            this.entry = entry;
+            this.remainingTtl = remainingTtl;
+        }
+
+        public DnsPacket.Entry getEntry() {
+            return this.entry;
+        }
+
+        /**
+         * @return the remaining TTL, in seconds.
+         */
+        public int getRemainingTtl() {
+            return this.remainingTtl;
+        }
+    }
+
+    private final HashMap<DnsRecordIndex.Key, ArrayList<CachedRecord>> records =
+            new HashMap<DnsRecordIndex.Key, ArrayList<CachedRecord>>();
+    private final TimerWheel<CachedRecord> wheel;
+    private final TimerWheel.Listener<CachedRecord> expiryListener =
+            new TimerWheel.Listener<CachedRecord>() {
+                @Override
+                public void onExpired(CachedRecord record) {
+                    remove(record);
+                }
+            };
+    private int size;
+
+    public DnsRecordCache() {
+        this.wheel = new TimerWheel<CachedRecord>(WHEEL_SLOTS, WHEEL_TICK,
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Adds a record, or refreshes the TTL of the same record if it is already
+     * cached. The entry must be detached from its packet buffer.
+     */
+    public synchronized void put(DnsPacket.Entry entry) {
+        long now = this.advance();
+        DnsRecordIndex.Key key = new DnsRecordIndex.Key();
+
+        key.set(entry.getName(), entry.getType());
+        ArrayList<CachedRecord> cached = this.records.get(key);
+
+        if (cached == null) {
+            cached = new ArrayList<CachedRecord>(1);
+            this.records.put(key, cached);
+        }
+        Iterator<CachedRecord> iterator = cached.iterator();
+
+        while (iterator.hasNext()) {
+            CachedRecord record = iterator.next();
+
+            if (record.entry.isSameRecord(entry) || (entry.isUnique()
+                    && ((now - record.receivedAt) > DnsRecordIndex.CACHE_FLUSH_DELAY))) {
+                this.wheel.cancel(record.timer);
+                iterator.remove();
+                this.size--;
+            }
+        }
+        if (this.size >= MAX_RECORDS) {
+            Log.w(TAG, "Record cache is full, not caching " + entry);
+            if (cached.isEmpty()) {
+                this.records.remove(key);
+            }
+            return;
+        }
+        int ttl = (entry.getTtl() > 0) ? entry.getTtl() : GOODBYE_TTL;
+        CachedRecord record = new CachedRecord(entry, now, ttl);
+
+        record.timer = this.wheel.schedule(record, record.expiresAt);
+        cached.add(record);
+        this.size++;
+    }
+
+    /**
+     * @return the records currently cached, except goodbye records.
+     */
+    public synchronized List<DnsPacket.Entry> getRecords() {
+        this.advance();
+        ArrayList<DnsPacket.Entry> entries = new ArrayList<DnsPacket.Entry>(this.size);
+
+        for (ArrayList<CachedRecord> cached : this.records.values()) {
+            for (CachedRecord record : cached) {
+                if (record.entry.getTtl() > 0) {
+                    entries.add(record.entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the cached records of a type that still have more than half of
+     * their TTL to live, i.e. those a querier may list as known answers
+     * (RFC 6762, section 7.1).
+     */
+    public synchronized List<FreshRecord> getFreshRecords(DnsPacket.ResourceType type) {
+        long now = this.advance();
+        ArrayList<FreshRecord> fresh = new ArrayList<FreshRecord>();
+
+        for (ArrayList<CachedRecord> cached : this.records.values()) {
+            for (CachedRecord record : cached) {
+                // All the records of a list have the same name and type.
+                if (record.entry.getType() != type) {
+                    break;
+                }
+                long remaining = record.expiresAt - now;
+
+                if ((record.entry.getTtl() > 0) && (remaining * 2) > (record.expiresAt - record.receivedAt)) {
+                    fresh.add(new FreshRecord(record.entry, (int) (remaining / MILLIS_PER_SECOND)));
+                }
+            }
+        }
+        return fresh;
+    }
+
+    public synchronized void clear() {
+        for (ArrayList<CachedRecord> cached : this.records.values()) {
+            for (CachedRecord record : cached) {
+                this.wheel.cancel(record.timer);
+            }
+        }
+        this.records.clear();
+        this.size = 0;
+    }
+
+    private long advance() {
+        long now = SystemClock.elapsedRealtime();
+
+        this.wheel.advance(now, this.expiryListener);
+        return now;
+    }
+
+    private void remove(CachedRecord record) {
+        DnsRecordIndex.Key key = new DnsRecordIndex.Key();
+
+        key.set(record.entry.getName(), record.entry.getType());
+        ArrayList<CachedRecord> cached = this.records.get(key);
+
+        if ((cached != null) && cached.remove(record)) {
+            this.size--;
+            if (cached.isEmpty()) {
+                this.records.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Resource records indexed by owner name and type, so that the records of a
+ * service can be found without scanning every section of the message.
+ * Lookups reuse a probe key and do not allocate.
+ */
+public class DnsRecordIndex {
+    /**
+     * How long after the records of a name and type were received a record
+     * with the cache-flush bit replaces them (RFC 6762, section 10.2).
+     * Records received within this delay belong to the same announcement.
+     */
+    static final long CACHE_FLUSH_DELAY = 1000;
+
+    private final HashMap<Key, RecordSet> records = new HashMap<Key, RecordSet>();
+    private final Key probe = new Key();
+
+    /**
+     * Adds the record, unless the same record (see
+     * {@link DnsPacket.Entry#isSameRecord}) is already indexed. A record with
+     * the cache-flush bit set first removes the records of the same name and
+     * type received more than {@link #CACHE_FLUSH_DELAY} ms earlier, since its
+     * owner no longer has them.
+     *
+     * @param now the current time, in ms of
+     *            {@link android.os.SystemClock#elapsedRealtime()}.
+     * @return true if the record was added.
+     */
+    public boolean add(DnsPacket.Entry entry, long now) {
+        this.probe.set(entry.getName(), entry.getType());
+        RecordSet recordSet = this.records.get(this.probe);
+
+        this.probe.set(null, null);
+        if (recordSet == null) {
+            Key key = new Key();
+
+            key.set(entry.getName(), entry.getType());
+            recordSet = new RecordSet();
+            this.records.put(key, recordSet);
+        } else if (entry.isUnique() && ((now - recordSet.receivedAt) > CACHE_FLUSH_DELAY)) {
+            recordSet.entries.clear();
+        } else {
+            for (DnsPacket.Entry known : recordSet.entries) {
+                if (known.isSameRecord(entry)) {
+                    recordSet.receivedAt = now;
+                    return false;
+                }
+            }
+        }
+        recordSet.entries.add(entry);
+        recordSet.receivedAt = now;
+        return true;
+    }
+
+    /**
+     * Removes the record equal (see {@link DnsPacket.Entry#isSameRecord}) to
+     * the given one.
+     *
+     * @return true if such a record was indexed.
+     */
+    public boolean remove(DnsPacket.Entry entry) {
+        this.probe.set(entry.getName(), entry.getType());
+        RecordSet recordSet = this.records.get(this.probe);
+
+        if (recordSet != null) {
+            Iterator<DnsPacket.Entry> iterator = recordSet.entries.iterator();
+
+            while (iterator.hasNext()) {
+                if (iterator.next().isSameRecord(entry)) {
+                    iterator.remove();
+                    if (recordSet.entries.isEmpty()) {
+                        this.records.remove(this.probe);
+                    }
+                    this.probe.set(null, null);
+                    return true;
+                }
+            }
+        }
+        this.probe.set(null, null);
+        return false;
+    }
+
+    /**
+     * @return the records with the given name and type, or an empty list.
+     */
+    public List<DnsPacket.Entry> get(DnsPacket.Name name, DnsPacket.ResourceType type) {
+        this.probe.set(name, type);
+        RecordSet recordSet = this.records.get(this.probe);
+
+        this.probe.set(null, null);
+        if (recordSet == null) {
+            return Collections.emptyList();
+        }
+        return recordSet.entries;
+    }
+
+    /**
+     * @return the first record with the given name and type, or null.
+     */
+    public DnsPacket.Entry getFirst(DnsPacket.Name name, DnsPacket.ResourceType type) {
+        List<DnsPacket.Entry> entries = this.get(name, type);
+
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    // The records of one name and type, and when one was last received.
+    private static class RecordSet {
+        final ArrayList<DnsPacket.Entry> entries = new ArrayList<DnsPacket.Entry>(1);
+        long receivedAt;
+    }
+
+    static class Key {
+        private DnsPacket.Name name;
+        private DnsPacket.ResourceType type;
+        private int hash;
+
+        void set(DnsPacket.Name name, DnsPacket.ResourceType type) {
+            this.name = name;
+            this.type = type;
+            this.hash = (name != null) ? ((31 * name.hashCode()) + type.ordinal()) : 0;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject) {
+                return true;
+            }
+            if (!(thatObject instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) thatObject;
+
+            return (this.hash == that.hash) && (this.type == that.type)
+                    && this.name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
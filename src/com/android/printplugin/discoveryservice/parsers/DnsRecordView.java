@@ -0,0 +1,95 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+/**
+ * Flyweight view over one resource record of the buffer being parsed by a
+ * {@link DnsParser}. The same instance is reused for every record of a packet,
+ * so it must not be kept after the parser moves on; call {@link #toEntry()}
+ * or {@link #toQuestion()} to get an object that can be kept. Questions have
+ * no TTL nor data.
+ */
+public class DnsRecordView {
+    // See DnsPacket.RRCLASS_MASK.
+    private static final int RRCLASS_MASK = 0x00007FFF;
+
+    private final DnsParser parser;
+
+    private int nameOffset;
+    private DnsPacket.ResourceType type;
+    private int clazz;
+    private int ttl;
+    private int dataOffset;
+    private int dataLength;
+
+    DnsRecordView(DnsParser parser) {
+        this.parser = parser;
+    }
+
+    void set(int nameOffset, DnsPacket.ResourceType type, int clazz, int ttl, int dataOffset,
+            int dataLength) {
+        this.nameOffset = nameOffset;
+        this.type = type;
+        this.clazz = clazz;
+        this.ttl = ttl;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    public int getNameOffset() {
+        return this.nameOffset;
+    }
+
+    public DnsPacket.ResourceType getType() {
+        return this.type;
+    }
+
+    public int getClazz() {
+        return this.clazz & RRCLASS_MASK;
+    }
+
+    int getRawClazz() {
+        return this.clazz;
+    }
+
+    public boolean isUnique() {
+        return (this.clazz & ~RRCLASS_MASK) != 0;
+    }
+
+    public int getTtl() {
+        return this.ttl;
+    }
+
+    public int getDataOffset() {
+        return this.dataOffset;
+    }
+
+    public int getDataLength() {
+        return this.dataLength;
+    }
+
+    public DnsPacket.Name getName() throws DnsException {
+        return this.parser.readName(this.nameOffset);
+    }
+
+    public DnsPacket.Entry toEntry() throws DnsException {
+        return this.parser.createEntry(this);
+    }
+
+    public DnsPacket.Question toQuestion() throws DnsException {
+        return this.parser.createQuestion(this);
+    }
+}
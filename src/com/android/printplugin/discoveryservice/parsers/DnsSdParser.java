@@ -15,39 +15,258 @@ limitations under the License.
  */
 package com.android.printplugin.discoveryservice.parsers;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 public class DnsSdParser {
     private static final String TAG = DnsSdParser.class.getSimpleName();
 
-    private static final char SEPARATOR = '=';
+    private static final int CLASS_IN = 1;
 
-    private DnsPacket packet;
+    // Services announced by a PTR answer but not built yet, because some of
+    // their records are still missing.
+    private final ArrayList<PendingService> pointers = new ArrayList<PendingService>();
+    private final HashSet<DnsPacket.Name> knownServices = new HashSet<DnsPacket.Name>();
+    private final DnsRecordIndex records = new DnsRecordIndex();
+    // Services already built that have since sent goodbye records.
+    private final ArrayList<DnsPacket.Name> removedServices = new ArrayList<DnsPacket.Name>();
+    private final DnsRecordCache cache;
+    private final ServiceTypeMatcher serviceTypes;
+    // Reused for every message, along with its table of decoded names.
+    private final DnsParser parser = new DnsParser();
+    private final RecordCollector collector = new RecordCollector();
+    private boolean truncated;
+    // Host that sent the message being added, null if unknown.
+    private InetAddress source;
+    // When the records being added were received.
+    private long receivedAt;
 
-    public DnsService[] parse(DnsPacket aPacket) throws DnsException {
-        this.packet = aPacket;
-        return this.parseServices();
+    /**
+     * @param cache if not null, the records received by
+     *            {@link #add(ByteBuffer, InetAddress)} are also stored in this
+     *            cache.
+     * @param serviceTypes if not null, only the services of these types are
+     *            built. The PTR answers pointing to other services are
+     *            ignored.
+     */
+    public DnsSdParser(DnsRecordCache cache, ServiceTypeMatcher serviceTypes) {
+        this.cache = cache;
+        this.serviceTypes = serviceTypes;
     }
 
-    private DnsService[] parseServices() throws DnsException {
-        ArrayList<DnsService> serviceList = new ArrayList<DnsService>();
+    /**
+     * Adds the records of one more message to those collected so far, so that
+     * a service can be built from records received in different packets (split
+     * responses, or answers to follow-up queries). The records are detached
+     * from the buffer, which can be reused as soon as this returns.
+     *
+     * @param source the host that sent the message. The services it announces
+     *            are attributed to it, see {@link #getMissingRecords}.
+     * @return true if the message has the TC bit set. It is up to the caller
+     *         to tell what it means: records left out of a legacy unicast
+     *         response, nothing in a multicast one.
+     */
+    public boolean add(ByteBuffer buffer, InetAddress source) throws DnsException {
+        this.truncated = false;
+        this.source = source;
+        this.receivedAt = SystemClock.elapsedRealtime();
+        try {
+            this.parser.parse(buffer, this.collector);
+        } finally {
+            this.source = null;
+        }
+        return this.truncated;
+    }
+
+    /**
+     * Adds a record obtained elsewhere, e.g. from a cache, to those collected
+     * so far. The entry must be detached from its packet buffer.
+     */
+    public void add(DnsPacket.Entry entry) {
+        this.receivedAt = SystemClock.elapsedRealtime();
+        this.addRecord(entry);
+    }
 
-        for (DnsPacket.Entry answerEntry : this.packet.getAnswers()) {
-            if (DnsPacket.ResourceType.PTR == answerEntry.getType()) {
-                DnsPacket.Ptr ptr = (DnsPacket.Ptr) answerEntry;
+    /**
+     * Builds the services whose records are now all known. Each service is
+     * only returned once; the others stay pending until later messages bring
+     * their missing records. The services announced by the given hosts are
+     * not built yet, e.g. while more of their records are expected.
+     */
+    public DnsService[] build(Set<InetAddress> heldSources) throws DnsException {
+        return this.parseServices(heldSources);
+    }
+
+    /**
+     * Forgets a service built earlier, e.g. because it turned out to be
+     * invalid, so that it is built again the next time it is announced.
+     */
+    public void forget(DnsPacket.Name serviceName) {
+        this.knownServices.remove(serviceName);
+    }
 
-                try {
-                    serviceList.add(this.buildService(ptr));
-                } catch (DnsSdException exc) {
-                    Log.w(TAG, "Not all fields of the service were found. Will ignore this entry: "
-                            + exc.getMessage());
+    /**
+     * @return true if some services announced by the host still miss records.
+     */
+    public boolean hasIncompleteServices(InetAddress source) {
+        for (PendingService service : this.pointers) {
+            if (source.equals(service.source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the records still missing to build the pending services announced
+     * by a host: their SRV and TXT records, and the addresses of the hosts
+     * their SRV records target.
+     */
+    public DnsPacket.Question[] getMissingRecords(InetAddress source) {
+        ArrayList<DnsPacket.Question> missing = new ArrayList<DnsPacket.Question>();
+
+        for (PendingService service : this.pointers) {
+            if (!source.equals(service.source)) {
+                continue;
+            }
+            DnsPacket.Name serviceName = service.ptr.getPointedName();
+            DnsPacket.Entry srv = this.records.getFirst(serviceName, DnsPacket.ResourceType.SRV);
+
+            if (srv == null) {
+                missing.add(new DnsPacket.Question(serviceName, DnsPacket.ResourceType.SRV, CLASS_IN));
+            } else {
+                DnsPacket.Name hostname = ((DnsPacket.Srv) srv).getTarget();
+
+                if (this.records.get(hostname, DnsPacket.ResourceType.A).isEmpty()
+                        && this.records.get(hostname, DnsPacket.ResourceType.AAAA).isEmpty()) {
+                    missing.add(new DnsPacket.Question(hostname, DnsPacket.ResourceType.A, CLASS_IN));
+                    missing.add(new DnsPacket.Question(hostname, DnsPacket.ResourceType.AAAA, CLASS_IN));
                 }
             }
+            if (this.records.getFirst(serviceName, DnsPacket.ResourceType.TXT) == null) {
+                missing.add(new DnsPacket.Question(serviceName, DnsPacket.ResourceType.TXT, CLASS_IN));
+            }
+        }
+        return missing.toArray(new DnsPacket.Question[missing.size()]);
+    }
+
+    /**
+     * Returns the services built earlier that have since been withdrawn by a
+     * goodbye record (a PTR answer with TTL 0, see RFC 6762, section 10.1).
+     * Each service is only returned once, and is built again if it is
+     * announced again.
+     */
+    public DnsPacket.Name[] takeRemovedServices() {
+        DnsPacket.Name[] removed = this.removedServices.toArray(
+                new DnsPacket.Name[this.removedServices.size()]);
+
+        this.removedServices.clear();
+        return removed;
+    }
+
+    /**
+     * Keeps the records describing services. Answer PTRs are the services to
+     * build; SRV, TXT and address records are indexed whichever section of the
+     * message they come from, those with the cache-flush bit replacing the
+     * older records they update. Goodbye records remove what they withdraw.
+     */
+    private void addRecord(DnsPacket.Entry entry) {
+        if (entry.getTtl() == 0) {
+            this.removeRecord(entry);
+            return;
+        }
+        switch (entry.getType()) {
+            case PTR:
+                this.addPointer((DnsPacket.Ptr) entry);
+                break;
+            case SRV:
+            case TXT:
+            case A:
+            case AAAA:
+                this.records.add(entry, this.receivedAt);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void collectRecord(DnsPacket.Entry entry) {
+        entry.detach();
+        if (this.cache != null) {
+            this.cache.put(entry);
+        }
+        this.addRecord(entry);
+    }
+
+    private void addPointer(DnsPacket.Ptr ptr) {
+        DnsPacket.Name serviceName = ptr.getPointedName();
+
+        if ((this.serviceTypes != null) && (this.serviceTypes.match(serviceName) == null)) {
+            return;
+        }
+        // Services are announced again by later packets, and the packets of a
+        // split response may repeat the same answer.
+        if (this.knownServices.add(serviceName)) {
+            this.pointers.add(new PendingService(ptr, this.source));
+        } else if (this.source != null) {
+            // A service added from the cache is attributed to the first host
+            // announcing it.
+            for (PendingService service : this.pointers) {
+                if ((service.source == null) && service.ptr.getPointedName().equals(serviceName)) {
+                    service.source = this.source;
+                }
+            }
+        }
+    }
+
+    private void removeRecord(DnsPacket.Entry entry) {
+        if (entry.getType() != DnsPacket.ResourceType.PTR) {
+            this.records.remove(entry);
+            return;
+        }
+        DnsPacket.Name serviceName = ((DnsPacket.Ptr) entry).getPointedName();
+
+        if (!this.knownServices.remove(serviceName)) {
+            return;
+        }
+        Iterator<PendingService> iterator = this.pointers.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().ptr.getPointedName().equals(serviceName)) {
+                // Never built, so never reported either.
+                iterator.remove();
+                return;
+            }
+        }
+        this.removedServices.add(serviceName);
+    }
+
+    private DnsService[] parseServices(Set<InetAddress> heldSources) throws DnsException {
+        ArrayList<DnsService> serviceList = new ArrayList<DnsService>();
+        Iterator<PendingService> iterator = this.pointers.iterator();
+
+        while (iterator.hasNext()) {
+            PendingService service = iterator.next();
+            DnsPacket.Ptr ptr = service.ptr;
+
+            if ((service.source != null) && heldSources.contains(service.source)) {
+                continue;
+            }
+
+            try {
+                serviceList.add(this.buildService(ptr));
+                iterator.remove();
+            } catch (DnsSdException exc) {
+                Log.d(TAG, "Not all fields of the service were found yet: " + exc.getMessage());
+            }
         }
         return serviceList.toArray(new DnsService[serviceList.size()]);
     }
@@ -59,7 +278,7 @@ public class DnsSdParser {
         DnsPacket.Name hostname = srvEntry.getTarget();
         DnsPacket.Address[] addressEntries = this.findAddresses(hostname);
         int port = srvEntry.getPort();
-        Map<String, byte[]> attributes = parseAttributes(txtEntry.getText());
+        TxtRecord attributes = new TxtRecord(txtEntry.getText());
         byte[][] addresses = new byte[addressEntries.length][];
 
         for (int i = 0; i < addressEntries.length; i++) {
@@ -69,102 +288,106 @@ public class DnsSdParser {
     }
 
     private DnsPacket.Srv findSrv(DnsPacket.Name serviceName) throws DnsSdException {
-        for (DnsPacket.Entry additionalEntry : this.packet.getAdditionals()) {
-            if (DnsPacket.ResourceType.SRV == additionalEntry.getType()) {
-                DnsPacket.Srv srv = (DnsPacket.Srv) additionalEntry;
+        DnsPacket.Entry srv = this.records.getFirst(serviceName, DnsPacket.ResourceType.SRV);
 
-                if (srv.getName().equals(serviceName)) {
-                    return srv;
-                }
-            }
+        if (srv == null) {
+            throw new DnsSdException("Service does not contain correspondent srv entry.");
         }
-        throw new DnsSdException("Service does not contain correspondent srv entry.");
+        return (DnsPacket.Srv) srv;
     }
 
     private DnsPacket.Txt findTxt(DnsPacket.Name serviceName) throws DnsSdException {
-        for (DnsPacket.Entry additionalEntry : this.packet.getAdditionals()) {
-            if (DnsPacket.ResourceType.TXT == additionalEntry.getType()) {
-                DnsPacket.Txt txt = (DnsPacket.Txt) additionalEntry;
+        DnsPacket.Entry txt = this.records.getFirst(serviceName, DnsPacket.ResourceType.TXT);
 
-                if (txt.getName().equals(serviceName)) {
-                    return txt;
-                }
-            }
+        if (txt == null) {
+            throw new DnsSdException("Service does not contain correspondent txt entry.");
         }
-        throw new DnsSdException("Service does not contain correspondent txt entry.");
+        return (DnsPacket.Txt) txt;
     }
 
     private DnsPacket.Address[] findAddresses(DnsPacket.Name hostname) throws DnsSdException {
-        ArrayList<DnsPacket.Address> addressEntries = new ArrayList<DnsPacket.Address>();
-
-        for (DnsPacket.Entry additionalEntry : this.packet.getAdditionals()) {
-            if ((DnsPacket.ResourceType.A == additionalEntry.getType())
-                    || (DnsPacket.ResourceType.AAAA == additionalEntry.getType())) {
-                DnsPacket.Address address = (DnsPacket.Address) additionalEntry;
+        List<DnsPacket.Entry> ipv4Entries = this.records.get(hostname, DnsPacket.ResourceType.A);
+        List<DnsPacket.Entry> ipv6Entries = this.records.get(hostname, DnsPacket.ResourceType.AAAA);
+        int nAddresses = ipv4Entries.size() + ipv6Entries.size();
 
-                if (address.getName().equals(hostname)) {
-                    addressEntries.add(address);
-                }
-            }
-        }
-        if (addressEntries.isEmpty()) {
+        if (nAddresses == 0) {
             throw new DnsSdException("Service does not contain correspondent address entry.");
-        } else if (addressEntries.size() > 1) {
+        } else if (nAddresses > 1) {
             Log.i(TAG, "Found service with more than one address: " + hostname);
         }
-        return addressEntries.toArray(new DnsPacket.Address[addressEntries.size()]);
+        DnsPacket.Address[] addressEntries = new DnsPacket.Address[nAddresses];
+        int i = 0;
+
+        for (DnsPacket.Entry entry : ipv4Entries) {
+            addressEntries[i++] = (DnsPacket.Address) entry;
+        }
+        for (DnsPacket.Entry entry : ipv6Entries) {
+            addressEntries[i++] = (DnsPacket.Address) entry;
+        }
+        return addressEntries;
+    }
+
+    /*
+     * Additional records are only useful to complete pending services, unless
+     * they are cached.
+     */
+    private boolean isCollectingAdditionals() {
+        return !this.pointers.isEmpty() || (this.cache != null);
     }
 
-    private static Map<String, byte[]> parseAttributes(byte[] txtData) {
-        Map<String, byte[]> attributes = new HashMap<String, byte[]>();
-        int offset = 0;
+    private class RecordCollector implements DnsVisitor {
 
-        while (offset < txtData.length) {
-            int attrLength = 0x00FF&(int)txtData[offset++];
-            int sepIndex = -1;
-            int keyLength = -1;
-            String key = null;
-            byte[] value = null;
+        @Override
+        public Action onHeader(int id, int flags, int nQuestions, int nAnswers,
+                int nAuthorities, int nAdditionals) {
+            truncated = ((flags & DnsPacket.FLAG_TRUNCATED) != 0);
+            return Action.SKIP_SECTION;
+        }
 
-            if ((attrLength < 0) || ((offset + attrLength) > txtData.length)) {
-                Log.w(TAG, "Invalid attribute length found in TXT record: " + attrLength);
-                Log.w(TAG, DNSLogUtils.byteArrayToDebugString(txtData, txtData.length));
-                return attributes;
-            }
-            sepIndex = findSeparator(txtData, offset, attrLength);
-            keyLength = (sepIndex > 0) ? (sepIndex - offset) : attrLength;
-            if (keyLength == 0) {
-                Log.w(TAG, "TXT attribute key cannot be empty.");
-                Log.w(TAG, DNSLogUtils.byteArrayToDebugString(txtData, txtData.length));
-                return attributes;
-            }
+        @Override
+        public Action onQuestion(DnsRecordView question) {
+            return Action.SKIP_SECTION;
+        }
 
-            try {
-				key = new String(txtData, offset, keyLength, "US-ASCII");
-			} catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Cannot use US-ASCII character set");
-				e.printStackTrace();
-				continue;
-			}
-
-            if (sepIndex > 0) {
-                int valueLength = (attrLength - keyLength - 1);
-
-                value = new byte[valueLength];
-                System.arraycopy(txtData, sepIndex + 1, value, 0, valueLength);
+        @Override
+        public Action onRecord(Section section, DnsRecordView record) throws DnsException {
+            switch (section) {
+                case ANSWER:
+                    break;
+                case ADDITIONAL:
+                    if (!isCollectingAdditionals()) {
+                        return Action.STOP;
+                    }
+                    break;
+                default:
+                    return isCollectingAdditionals() ? Action.SKIP_SECTION : Action.STOP;
+            }
+            switch (record.getType()) {
+                case PTR:
+                    if (section == Section.ANSWER) {
+                        collectRecord(record.toEntry());
+                    }
+                    break;
+                case SRV:
+                case TXT:
+                case A:
+                case AAAA:
+                    collectRecord(record.toEntry());
+                    break;
+                default:
+                    break;
             }
-            attributes.put(key, value);
-            offset += attrLength;
+            return Action.CONTINUE;
         }
-        return attributes;
     }
 
-    private static int findSeparator(byte[] txtData, int offset, int length) {
-        for (int i = offset; i < (offset + length); i++) {
-            if (txtData[i] == (byte) SEPARATOR) {
-                return i;
-            }
+    private static class PendingService {
+        final DnsPacket.Ptr ptr;
+        InetAddress source;
+
+        PendingService(DnsPacket.Ptr ptr, InetAddress source) {
+            this.ptr = ptr;
+            this.source = source;
         }
-        return -1;
     }
 }
@@ -15,17 +15,15 @@ limitations under the License.
  */
 package com.android.printplugin.discoveryservice.parsers;
 
-import java.util.Map;
-
 public class DnsService {
     private DnsPacket.Name name;
     private DnsPacket.Name hostname;
     private byte[][] addresses;
     private int port;
-    private Map<String, byte[]> attributes;
+    private TxtRecord attributes;
 
     public DnsService(DnsPacket.Name name, DnsPacket.Name hostname, byte[][] addresses, int port,
-            Map<String, byte[]> attributes) {
+            TxtRecord attributes) {
         this.name = name;
         this.hostname = hostname;
         this.addresses = addresses;
@@ -49,7 +47,7 @@ public class DnsService {
         return port;
     }
 
-    public Map<String, byte[]> getAttributes() {
+    public TxtRecord getAttributes() {
         return attributes;
     }
 
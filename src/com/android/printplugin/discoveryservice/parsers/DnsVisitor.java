@@ -0,0 +1,47 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+/**
+ * Receives the contents of a DNS message as {@link DnsParser} walks it.
+ */
+public interface DnsVisitor {
+
+    public enum Section {
+        ANSWER,
+        AUTHORITY,
+        ADDITIONAL
+    }
+
+    public enum Action {
+        // Keep reporting the following entries.
+        CONTINUE,
+
+        // Do not report the remaining entries of the current section. When
+        // returned from onHeader, the questions are skipped.
+        SKIP_SECTION,
+
+        // Stop parsing the message.
+        STOP
+    }
+
+    Action onHeader(int id, int flags, int nQuestions, int nAnswers, int nAuthorities,
+            int nAdditionals) throws DnsException;
+
+    Action onQuestion(DnsRecordView question) throws DnsException;
+
+    Action onRecord(Section section, DnsRecordView record) throws DnsException;
+}
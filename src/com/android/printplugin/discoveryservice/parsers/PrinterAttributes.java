@@ -0,0 +1,236 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/**
+ * The attributes of a printer advertised in its DNS-SD TXT record, decoded
+ * once in a single pass over the record. The document formats of the "pdl"
+ * key are kept as a bit set of the known formats, so that printers can be
+ * filtered by capability without decoding strings again.
+ */
+public final class PrinterAttributes implements Parcelable {
+
+    public static final int FORMAT_PDF = 1 << 0;
+    public static final int FORMAT_PWG_RASTER = 1 << 1;
+    public static final int FORMAT_URF = 1 << 2;
+    public static final int FORMAT_PCLM = 1 << 3;
+    public static final int FORMAT_PCL = 1 << 4;
+    public static final int FORMAT_POSTSCRIPT = 1 << 5;
+    public static final int FORMAT_JPEG = 1 << 6;
+    // Any format not listed above.
+    public static final int FORMAT_OTHER = 1 << 31;
+
+    private static final String[] FORMAT_TYPES = {
+            "application/pdf", "image/pwg-raster", "image/urf", "application/pclm",
+            "application/vnd.hp-pcl", "application/postscript", "image/jpeg"
+    };
+    private static final int[] FORMAT_BITS = {
+            FORMAT_PDF, FORMAT_PWG_RASTER, FORMAT_URF, FORMAT_PCLM,
+            FORMAT_PCL, FORMAT_POSTSCRIPT, FORMAT_JPEG
+    };
+
+    // Keys decoded, and the index of their values in the decoding pass.
+    private static final TxtRecord.Key[] KEYS = {
+            new TxtRecord.Key(BonjourParser.TY), new TxtRecord.Key(BonjourParser.PDL),
+            new TxtRecord.Key(BonjourParser.USB_MFG), new TxtRecord.Key(BonjourParser.MFG),
+            new TxtRecord.Key(BonjourParser.UUID), new TxtRecord.Key(BonjourParser.ADMINURL),
+            new TxtRecord.Key(BonjourParser.COLOR), new TxtRecord.Key(BonjourParser.DUPLEX)
+    };
+    private static final int TY = 0;
+    private static final int PDL = 1;
+    private static final int USB_MFG = 2;
+    private static final int MFG = 3;
+    private static final int UUID = 4;
+    private static final int ADMINURL = 5;
+    private static final int COLOR = 6;
+    private static final int DUPLEX = 7;
+
+    private static final String TRUE = "T";
+
+    private static final int FLAG_COLOR = 1 << 0;
+    private static final int FLAG_DUPLEX = 1 << 1;
+
+    private final String model;
+    private final String vendor;
+    private final int documentFormats;
+    private final String uuid;
+    private final String adminUrl;
+    private final int flags;
+
+    private PrinterAttributes(String model, String vendor, int documentFormats, String uuid,
+            String adminUrl, int flags) {
+        this.model = model;
+        this.vendor = vendor;
+        this.documentFormats = documentFormats;
+        this.uuid = uuid;
+        this.adminUrl = adminUrl;
+        this.flags = flags;
+    }
+
+    private PrinterAttributes(Parcel in) {
+        this.model = in.readString();
+        this.vendor = in.readString();
+        this.documentFormats = in.readInt();
+        this.uuid = in.readString();
+        this.adminUrl = in.readString();
+        this.flags = in.readInt();
+    }
+
+    /**
+     * Decodes the attributes of a TXT record. When a key appears several
+     * times, the first one is used. The vendor is read from "usb_MFG", or from
+     * "MFG" if the former is absent or empty.
+     */
+    public static PrinterAttributes decode(TxtRecord txtRecord) throws UnsupportedEncodingException {
+        String[] values = new String[KEYS.length];
+        boolean[] found = new boolean[KEYS.length];
+
+        for (int i = 0; i < txtRecord.getAttributeCount(); i++) {
+            for (int k = 0; k < KEYS.length; k++) {
+                if (txtRecord.hasKey(i, KEYS[k])) {
+                    if (!found[k]) {
+                        values[k] = txtRecord.getStringValue(i);
+                        found[k] = true;
+                    }
+                    break;
+                }
+            }
+        }
+        String vendor = TextUtils.isEmpty(values[USB_MFG]) ? values[MFG] : values[USB_MFG];
+        int documentFormats = (values[PDL] != null) ? parseDocumentFormats(values[PDL]) : 0;
+        int flags = 0;
+
+        if (TRUE.equalsIgnoreCase(values[COLOR])) {
+            flags |= FLAG_COLOR;
+        }
+        if (TRUE.equalsIgnoreCase(values[DUPLEX])) {
+            flags |= FLAG_DUPLEX;
+        }
+        return new PrinterAttributes(values[TY], vendor, documentFormats, values[UUID],
+                values[ADMINURL], flags);
+    }
+
+    private static int parseDocumentFormats(String pdl) {
+        int formats = 0;
+
+        for (String format : pdl.split(",")) {
+            String type = format.trim().toLowerCase(Locale.US);
+
+            if (type.length() == 0) {
+                continue;
+            }
+            int bit = FORMAT_OTHER;
+
+            for (int i = 0; i < FORMAT_TYPES.length; i++) {
+                if (FORMAT_TYPES[i].equals(type)) {
+                    bit = FORMAT_BITS[i];
+                    break;
+                }
+            }
+            formats |= bit;
+        }
+        return formats;
+    }
+
+    /**
+     * @return the printer model name ("ty" key), or null.
+     */
+    public String getModel() {
+        return this.model;
+    }
+
+    public String getVendor() {
+        return this.vendor;
+    }
+
+    /**
+     * @return the FORMAT_* bits of the document formats the printer accepts.
+     */
+    public int getDocumentFormats() {
+        return this.documentFormats;
+    }
+
+    /**
+     * @return true if the printer accepts all of the given FORMAT_* formats.
+     */
+    public boolean supportsFormats(int formats) {
+        return (this.documentFormats & formats) == formats;
+    }
+
+    /**
+     * @return true if the printer advertises at least one document format.
+     */
+    public boolean hasDocumentFormats() {
+        return this.documentFormats != 0;
+    }
+
+    public String getUuid() {
+        return this.uuid;
+    }
+
+    public String getAdminUrl() {
+        return this.adminUrl;
+    }
+
+    public boolean isColor() {
+        return (this.flags & FLAG_COLOR) != 0;
+    }
+
+    public boolean isDuplex() {
+        return (this.flags & FLAG_DUPLEX) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.model + " [vendor=" + this.vendor + "; formats=0x"
+                + Integer.toHexString(this.documentFormats) + "; color=" + this.isColor()
+                + "; duplex=" + this.isDuplex() + "]";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeString(this.model);
+        parcel.writeString(this.vendor);
+        parcel.writeInt(this.documentFormats);
+        parcel.writeString(this.uuid);
+        parcel.writeString(this.adminUrl);
+        parcel.writeInt(this.flags);
+    }
+
+    public static final Creator<PrinterAttributes> CREATOR = new Creator<PrinterAttributes>() {
+        @Override
+        public PrinterAttributes createFromParcel(Parcel in) {
+            return new PrinterAttributes(in);
+        }
+
+        @Override
+        public PrinterAttributes[] newArray(int size) {
+            return new PrinterAttributes[size];
+        }
+    };
+}
@@ -0,0 +1,114 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.util.Locale;
+
+/**
+ * A DNS-SD service type browsed for printers, without the domain, e.g.
+ * "_ipp._tcp", or a subtype of one, e.g. "_universal._sub._ipp._tcp"
+ * (RFC 6763, section 7.1). Service types are compared ignoring case.
+ */
+public final class ServiceType {
+    private static final String SUBTYPE_LABEL = "._sub.";
+
+    public static final ServiceType IPP = new ServiceType("_ipp._tcp");
+    public static final ServiceType IPPS = new ServiceType("_ipps._tcp");
+    public static final ServiceType PDL_DATASTREAM = new ServiceType("_pdl-datastream._tcp");
+    public static final ServiceType PRINTER = new ServiceType("_printer._tcp");
+    public static final ServiceType USCAN = new ServiceType("_uscan._tcp");
+    public static final ServiceType USCANS = new ServiceType("_uscans._tcp");
+
+    private final String name;
+    private final String instanceType;
+    private final boolean subtype;
+
+    /**
+     * @throws IllegalArgumentException if the name is not made of a service
+     *             label and a protocol label, optionally preceded by a subtype.
+     */
+    public ServiceType(String name) throws IllegalArgumentException {
+        String[] labels = name.split("\\.", -1);
+        boolean isSubtype = (labels.length == 4) && "_sub".equalsIgnoreCase(labels[1]);
+
+        if (((labels.length != 2) && !isSubtype) || !isValid(labels)) {
+            throw new IllegalArgumentException("Invalid DNS-SD service type: " + name);
+        }
+        this.name = name;
+        this.subtype = isSubtype;
+        this.instanceType = isSubtype
+                ? name.substring(name.toLowerCase(Locale.US).indexOf(SUBTYPE_LABEL) + SUBTYPE_LABEL.length())
+                : name;
+    }
+
+    private static boolean isValid(String[] labels) {
+        for (String label : labels) {
+            if ((label.length() == 0) || (label.length() > 63)) {
+                return false;
+            }
+        }
+        return labels[labels.length - 2].startsWith("_") && labels[labels.length - 1].startsWith("_");
+    }
+
+    /**
+     * @return the service type name, without the domain, e.g. "_ipp._tcp".
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the type of the service instances, i.e. the name without the
+     *         subtype, if any.
+     */
+    public String getInstanceType() {
+        return this.instanceType;
+    }
+
+    public boolean isSubtype() {
+        return this.subtype;
+    }
+
+    /**
+     * @return true for the scanning services (eSCL) that multi-function
+     *         devices advertise next to their printing services.
+     */
+    public boolean isScanner() {
+        return USCAN.name.equalsIgnoreCase(this.instanceType)
+                || USCANS.name.equalsIgnoreCase(this.instanceType);
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject) {
+            return true;
+        }
+        if (!(thatObject instanceof ServiceType)) {
+            return false;
+        }
+        return this.name.equalsIgnoreCase(((ServiceType) thatObject).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.name.toLowerCase(Locale.US).hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Matches DNS names against a set of DNS-SD service types (e.g. "_ipp._tcp")
+ * in the local domain. The service types are compiled once into lower case
+ * label sequences, which are compared label by label with the end of a name,
+ * ignoring ASCII case.
+ *
+ * Matching a parsed name ({@link #match(DnsPacket.Name)}) is thread-safe. The
+ * raw packet scan works directly on the message bytes and does not
+ * allocate, but reuses scratch space: an instance must not be used by several
+ * threads at the same time.
+ */
+public class ServiceTypeMatcher {
+    private static final String DOMAIN = "local";
+    private static final String NAME_ENCODING = "UTF-8";
+
+    private static final int HEADER_SIZE = 12;
+    private static final int BYTE_MASK = 0x000000FF;
+    private static final int LABEL_TYPE_MASK = 0xC0;
+    private static final int LABEL_TYPE_POINTER = 0xC0;
+    private static final int MAX_LABELS = 128;
+    private static final int MAX_POINTER_HOPS = 32;
+    private static final int QUESTION_FIXED_SIZE = 4;
+    private static final int RECORD_FIXED_SIZE = 10;
+
+    private final ServiceType[] types;
+    private final String[][] serviceTypeLabels;
+    private final byte[][][] serviceTypes;
+    private final int[] labelOffsets = new int[MAX_LABELS];
+
+    /**
+     * @param types the service types, in order of preference. Subtypes match
+     *            the instances of their parent type.
+     */
+    public ServiceTypeMatcher(ServiceType... types) {
+        this.types = new ServiceType[types.length];
+        this.serviceTypeLabels = new String[types.length][];
+        this.serviceTypes = new byte[types.length][][];
+        for (int i = 0; i < types.length; i++) {
+            this.types[i] = types[i].isSubtype() ? new ServiceType(types[i].getInstanceType()) : types[i];
+            this.serviceTypeLabels[i] = (this.types[i].getName() + "." + DOMAIN)
+                    .toLowerCase(Locale.US).split("\\.");
+            this.serviceTypes[i] = compile(this.serviceTypeLabels[i]);
+        }
+    }
+
+    private static byte[][] compile(String[] labels) {
+        byte[][] compiled = new byte[labels.length][];
+
+        for (int i = 0; i < labels.length; i++) {
+            try {
+                // Encoded as the parser decodes them.
+                compiled[i] = labels[i].getBytes(NAME_ENCODING);
+            } catch (UnsupportedEncodingException exc) {
+                throw new IllegalStateException("Unsupported encoding of DNS names: " + NAME_ENCODING, exc);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Finds the service type of a service instance name, e.g. "Printer._ipp.
+     * _tcp.local". The name must be made of exactly one instance label
+     * followed by the labels of the service type, so that an instance label
+     * containing a service type name does not match.
+     *
+     * @return the service type, or null if the name is not an instance of any
+     *         of them.
+     */
+    public ServiceType match(DnsPacket.Name name) {
+        String[] labels = name.getLabels();
+        int end = labels.length;
+
+        // Ignore the root label.
+        while ((end > 0) && (labels[end - 1].length() == 0)) {
+            end--;
+        }
+        for (int i = 0; i < this.serviceTypeLabels.length; i++) {
+            String[] serviceType = this.serviceTypeLabels[i];
+
+            if ((end == (serviceType.length + 1))
+                    && matchesLabels(labels, end - serviceType.length, serviceType)) {
+                return this.types[i];
+            }
+        }
+        return null;
+    }
+
+    private static boolean matchesLabels(String[] labels, int start, String[] serviceType) {
+        for (int i = 0; i < serviceType.length; i++) {
+            if (!labels[start + i].equalsIgnoreCase(serviceType[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks, without parsing the whole message, whether any record of the
+     * answer section is owned by one of the service types or by an instance
+     * of them. Malformed messages are rejected.
+     *
+     * @param buffer the message between the buffer position and its limit.
+     */
+    public boolean matchesAnyAnswer(ByteBuffer buffer) {
+        int base = buffer.position();
+        int end = buffer.limit();
+
+        if ((end - base) < HEADER_SIZE) {
+            return false;
+        }
+        int nQuestions = readUInt16(buffer, base + 4);
+        int nAnswers = readUInt16(buffer, base + 6);
+        int offset = base + HEADER_SIZE;
+
+        for (int i = 0; (i < nQuestions) && (offset >= 0); i++) {
+            offset = skipName(buffer, offset, end);
+            offset = (offset >= 0) ? (offset + QUESTION_FIXED_SIZE) : offset;
+        }
+        for (int i = 0; (i < nAnswers) && (offset >= 0); i++) {
+            if (this.matchesName(buffer, base, offset, end)) {
+                return true;
+            }
+            offset = skipName(buffer, offset, end);
+            if ((offset < 0) || ((end - offset) < RECORD_FIXED_SIZE)) {
+                return false;
+            }
+            offset += RECORD_FIXED_SIZE + readUInt16(buffer, offset + RECORD_FIXED_SIZE - 2);
+        }
+        return false;
+    }
+
+    private boolean matchesName(ByteBuffer buffer, int base, int offset, int end) {
+        int nLabels = this.collectLabels(buffer, base, offset, end);
+
+        for (byte[][] serviceType : this.serviceTypes) {
+            if (matchesSuffix(buffer, this.labelOffsets, nLabels, serviceType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the offset of each label of the name, following compression
+     * pointers, into the scratch array.
+     *
+     * @return the number of labels, excluding the root one, or -1 if the name
+     *         is malformed.
+     */
+    private int collectLabels(ByteBuffer buffer, int base, int offset, int end) {
+        int nLabels = 0;
+        int hops = 0;
+        int nameStart = offset;
+
+        while (offset < end) {
+            int labelLength = buffer.get(offset) & BYTE_MASK;
+
+            if ((labelLength & LABEL_TYPE_MASK) == LABEL_TYPE_POINTER) {
+                if (((end - offset) < 2) || (++hops > MAX_POINTER_HOPS)) {
+                    return -1;
+                }
+                int target = base + (((labelLength & ~LABEL_TYPE_MASK) << 8)
+                        | (buffer.get(offset + 1) & BYTE_MASK));
+                if (target >= nameStart) {
+                    return -1;
+                }
+                offset = target;
+                nameStart = target;
+            } else if ((labelLength & LABEL_TYPE_MASK) != 0) {
+                return -1;
+            } else if (labelLength == 0) {
+                return nLabels;
+            } else if ((nLabels == MAX_LABELS) || ((end - offset - 1) < labelLength)) {
+                return -1;
+            } else {
+                this.labelOffsets[nLabels++] = offset;
+                offset += labelLength + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesSuffix(ByteBuffer buffer, int[] labelOffsets, int nLabels,
+            byte[][] serviceType) {
+        if (nLabels < serviceType.length) {
+            return false;
+        }
+        for (int i = 1; i <= serviceType.length; i++) {
+            if (!matchesLabel(buffer, labelOffsets[nLabels - i],
+                    serviceType[serviceType.length - i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesLabel(ByteBuffer buffer, int offset, byte[] label) {
+        if ((buffer.get(offset) & BYTE_MASK) != label.length) {
+            return false;
+        }
+        for (int i = 0; i < label.length; i++) {
+            if (toLowerCase(buffer.get(offset + 1 + i)) != label[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return ((b >= 'A') && (b <= 'Z')) ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * @return the offset following the name, or -1 if it is malformed.
+     */
+    private static int skipName(ByteBuffer buffer, int offset, int end) {
+        while (offset < end) {
+            int labelLength = buffer.get(offset) & BYTE_MASK;
+
+            if ((labelLength & LABEL_TYPE_MASK) == LABEL_TYPE_POINTER) {
+                return ((offset + 2) <= end) ? (offset + 2) : -1;
+            } else if ((labelLength & LABEL_TYPE_MASK) != 0) {
+                return -1;
+            }
+            offset += labelLength + 1;
+            if (labelLength == 0) {
+                return (offset <= end) ? offset : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int readUInt16(ByteBuffer buffer, int offset) {
+        return ((buffer.get(offset) & BYTE_MASK) << 8) | (buffer.get(offset + 1) & BYTE_MASK);
+    }
+}
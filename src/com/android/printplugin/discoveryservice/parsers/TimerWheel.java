@@ -0,0 +1,138 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+/**
+ * Hashed timer wheel. Timers are put in the slot of their deadline tick,
+ * modulo the number of slots, so scheduling and cancelling are O(1) and
+ * advancing the clock only visits the slots of the ticks that went by. Timers
+ * due more than one revolution away simply stay in their slot until their
+ * tick comes.
+ *
+ * The wheel has no thread of its own: it is driven by {@link #advance}, and it
+ * is not thread-safe.
+ */
+public class TimerWheel<T> {
+
+    public interface Listener<T> {
+        void onExpired(T item);
+    }
+
+    public static final class Timer<T> {
+        private final T item;
+        private long deadlineTick;
+        private Timer<T> previous;
+        private Timer<T> next;
+
+        private Timer(T item) {
+            this.item = item;
+        }
+
+        public T getItem() {
+            return this.item;
+        }
+
+        private boolean isScheduled() {
+            return this.previous != null;
+        }
+    }
+
+    private final Timer<T>[] slots;
+    private final long tickLength;
+    private long currentTick;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public TimerWheel(int nSlots, long tickLength, long now) {
+        this.slots = new Timer[nSlots];
+        for (int i = 0; i < nSlots; i++) {
+            // Sentinel of the circular list of the slot.
+            Timer<T> head = new Timer<T>(null);
+
+            head.previous = head;
+            head.next = head;
+            this.slots[i] = head;
+        }
+        this.tickLength = tickLength;
+        this.currentTick = now / tickLength;
+    }
+
+    /**
+     * Schedules the item to expire at the given time, rounded up to the next
+     * tick.
+     */
+    public Timer<T> schedule(T item, long deadline) {
+        Timer<T> timer = new Timer<T>(item);
+
+        timer.deadlineTick = Math.max(this.currentTick + 1,
+                (deadline + this.tickLength - 1) / this.tickLength);
+        Timer<T> head = this.slots[(int) (timer.deadlineTick % this.slots.length)];
+
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+        return timer;
+    }
+
+    public void cancel(Timer<T> timer) {
+        if (timer.isScheduled()) {
+            timer.previous.next = timer.next;
+            timer.next.previous = timer.previous;
+            timer.previous = null;
+            timer.next = null;
+        }
+    }
+
+    /**
+     * Moves the clock to the given time, reporting every timer that expired
+     * meanwhile.
+     */
+    public void advance(long now, Listener<T> listener) {
+        long targetTick = now / this.tickLength;
+
+        if ((targetTick - this.currentTick) >= this.slots.length) {
+            // A whole revolution went by: every slot has to be looked at once.
+            this.currentTick = targetTick;
+            for (Timer<T> head : this.slots) {
+                this.expire(head, targetTick, listener);
+            }
+            return;
+        }
+        while (this.currentTick < targetTick) {
+            this.currentTick++;
+            this.expire(this.slots[(int) (this.currentTick % this.slots.length)],
+                    this.currentTick, listener);
+        }
+    }
+
+    private void expire(Timer<T> head, long tick, Listener<T> listener) {
+        Timer<T> timer = head.next;
+
+        while (timer != head) {
+            Timer<T> next = timer.next;
+
+            if (timer.deadlineTick <= tick) {
+                this.cancel(timer);
+                listener.onExpired(timer.item);
+                if ((next != head) && !next.isScheduled()) {
+                    // The listener cancelled the next timer.
+                    next = head.next;
+                }
+            }
+            timer = next;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/**
+ * Read-only view of the key/value attributes of a DNS-SD TXT record
+ * (RFC 6763, section 6). The record data is only indexed: keys are compared in
+ * place, ignoring ASCII case, and values are copied or decoded when they are
+ * requested. When a key appears several times, the first one is used.
+ */
+public class TxtRecord {
+    private static final String TAG = TxtRecord.class.getSimpleName();
+
+    private static final byte SEPARATOR = '=';
+    private static final String VALUE_ENCODING = "UTF-8";
+    private static final int[] NO_OFFSETS = new int[0];
+
+    /**
+     * Well-known key, lower-cased once so that looking it up only needs to
+     * fold the case of the record bytes.
+     */
+    public static final class Key {
+        private final String name;
+        private final byte[] lowerCase;
+
+        public Key(String name) {
+            this.name = name;
+            this.lowerCase = name.toLowerCase(Locale.US).getBytes();
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    private final byte[] data;
+
+    // Offset of the length byte of each attribute, and length of its key.
+    private int[] attributeOffsets;
+    private int[] keyLengths;
+    private int nAttributes = -1;
+
+    public TxtRecord(byte[] data) {
+        this.data = data;
+    }
+
+    public boolean containsKey(Key key) {
+        return this.find(key) >= 0;
+    }
+
+    public boolean containsKey(String key) {
+        return this.find(key) >= 0;
+    }
+
+    /**
+     * @return a copy of the value, or null if the key is absent or has no
+     *         value.
+     */
+    public byte[] get(Key key) {
+        return this.getValue(this.find(key));
+    }
+
+    public byte[] get(String key) {
+        return this.getValue(this.find(key));
+    }
+
+    /**
+     * @return the value decoded as UTF-8, or null if the key is absent or has
+     *         no value.
+     */
+    public String getString(Key key) throws UnsupportedEncodingException {
+        return this.getStringValue(this.find(key));
+    }
+
+    public String getString(String key) throws UnsupportedEncodingException {
+        return this.getStringValue(this.find(key));
+    }
+
+    /**
+     * @return true if the key is present with a non empty value.
+     */
+    public boolean hasValue(Key key) {
+        int index = this.find(key);
+
+        return (index >= 0) && (this.getValueLength(index) > 0);
+    }
+
+    /**
+     * @return the number of well-formed attributes, duplicates included.
+     */
+    int getAttributeCount() {
+        this.index();
+        return this.nAttributes;
+    }
+
+    /**
+     * @return true if the key of the attribute at the given index is the given
+     *         one, ignoring ASCII case.
+     */
+    boolean hasKey(int index, Key key) {
+        if (this.keyLengths[index] != key.lowerCase.length) {
+            return false;
+        }
+        int keyOffset = this.attributeOffsets[index] + 1;
+
+        for (int j = 0; j < key.lowerCase.length; j++) {
+            if (toLowerCase(this.data[keyOffset + j]) != key.lowerCase[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] getValue(int index) {
+        int valueLength = this.getValueLength(index);
+
+        if (valueLength < 0) {
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+
+        System.arraycopy(this.data, this.getValueOffset(index), value, 0, valueLength);
+        return value;
+    }
+
+    String getStringValue(int index) throws UnsupportedEncodingException {
+        int valueLength = this.getValueLength(index);
+
+        if (valueLength < 0) {
+            return null;
+        }
+        return new String(this.data, this.getValueOffset(index), valueLength, VALUE_ENCODING);
+    }
+
+    private int getValueOffset(int index) {
+        return this.attributeOffsets[index] + 1 + this.keyLengths[index] + 1;
+    }
+
+    /**
+     * @return the value length, or -1 if there is no such attribute or it has
+     *         no value.
+     */
+    int getValueLength(int index) {
+        if (index < 0) {
+            return -1;
+        }
+        int attrLength = this.data[this.attributeOffsets[index]] & 0xFF;
+
+        return (attrLength > this.keyLengths[index]) ? (attrLength - this.keyLengths[index] - 1) : -1;
+    }
+
+    private int find(Key key) {
+        this.index();
+        for (int i = 0; i < this.nAttributes; i++) {
+            if (this.hasKey(i, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int find(String key) {
+        this.index();
+        for (int i = 0; i < this.nAttributes; i++) {
+            if (this.keyLengths[i] == key.length()) {
+                int keyOffset = this.attributeOffsets[i] + 1;
+                int j = 0;
+
+                while ((j < key.length()) && (toLowerCase(this.data[keyOffset + j])
+                        == toLowerCase((byte) key.charAt(j)))) {
+                    j++;
+                }
+                if (j == key.length()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return ((b >= 'A') && (b <= 'Z')) ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Finds where each attribute and its key are, the first time the record
+     * is looked into. Indexing stops at the first malformed attribute.
+     */
+    private void index() {
+        if (this.nAttributes >= 0) {
+            return;
+        }
+        int count = 0;
+        int offset = 0;
+
+        while (offset < this.data.length) {
+            offset += (this.data[offset] & 0xFF) + 1;
+            count++;
+        }
+        this.attributeOffsets = (count > 0) ? new int[count] : NO_OFFSETS;
+        this.keyLengths = (count > 0) ? new int[count] : NO_OFFSETS;
+        this.nAttributes = 0;
+        offset = 0;
+        while (offset < this.data.length) {
+            int attrLength = this.data[offset] & 0xFF;
+
+            if ((offset + 1 + attrLength) > this.data.length) {
+                Log.w(TAG, "Invalid attribute length found in TXT record: " + attrLength);
+                Log.w(TAG, DNSLogUtils.byteArrayToDebugString(this.data, this.data.length));
+                return;
+            }
+            int keyLength = 0;
+
+            while ((keyLength < attrLength) && (this.data[offset + 1 + keyLength] != SEPARATOR)) {
+                keyLength++;
+            }
+            if (keyLength == 0) {
+                if (attrLength > 0) {
+                    Log.w(TAG, "TXT attribute key cannot be empty.");
+                    Log.w(TAG, DNSLogUtils.byteArrayToDebugString(this.data, this.data.length));
+                    return;
+                }
+            } else {
+                this.attributeOffsets[this.nAttributes] = offset;
+                this.keyLengths[this.nAttributes] = keyLength;
+                this.nAttributes++;
+            }
+            offset += attrLength + 1;
+        }
+    }
+}
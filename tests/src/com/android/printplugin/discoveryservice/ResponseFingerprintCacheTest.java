@@ -0,0 +1,71 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.TestCase;
+
+public class ResponseFingerprintCacheTest extends TestCase {
+    private static final byte[] RESPONSE = {
+            0x12, 0x34, (byte) 0x84, 0x00, 0x00, 0x00, 0x00, 0x01, 'a'
+    };
+
+    private final ResponseFingerprintCache cache = new ResponseFingerprintCache();
+
+    public void testSameResponseIsDuplicate() throws UnknownHostException {
+        assertFalse(this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1")));
+        assertTrue(this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1")));
+        assertEquals(1, this.cache.getHits());
+        assertEquals(1, this.cache.getMisses());
+    }
+
+    public void testTransactionIdIsIgnored() throws UnknownHostException {
+        byte[] answer = RESPONSE.clone();
+
+        answer[0] = 0x56;
+        this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1"));
+        assertTrue(this.cache.isDuplicate(packet(answer, "10.0.0.1")));
+    }
+
+    public void testOtherHostOrPayloadIsNotDuplicate() throws UnknownHostException {
+        byte[] other = RESPONSE.clone();
+
+        other[other.length - 1] = 'b';
+        this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1"));
+        assertFalse(this.cache.isDuplicate(packet(RESPONSE, "10.0.0.2")));
+        assertFalse(this.cache.isDuplicate(packet(other, "10.0.0.1")));
+    }
+
+    public void testClearKeepsStatistics() throws UnknownHostException {
+        this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1"));
+        this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1"));
+        this.cache.clear();
+        assertFalse(this.cache.isDuplicate(packet(RESPONSE, "10.0.0.1")));
+        assertEquals(1, this.cache.getHits());
+        assertEquals(2, this.cache.getMisses());
+    }
+
+    private static DatagramPacket packet(byte[] data, String source) throws UnknownHostException {
+        // Received at an offset of a larger buffer, as the pooled ones are.
+        byte[] buffer = new byte[data.length + 4];
+
+        System.arraycopy(data, 0, buffer, 2, data.length);
+        return new DatagramPacket(buffer, 2, data.length, InetAddress.getByName(source), 5353);
+    }
+}
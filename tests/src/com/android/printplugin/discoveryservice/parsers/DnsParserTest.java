@@ -0,0 +1,169 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class DnsParserTest extends TestCase {
+    // Response header with one answer.
+    private static final byte[] HEADER = {
+            0x00, 0x00, (byte) 0x84, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00
+    };
+
+    public void testParsesCompressedNames() throws DnsException {
+        DnsPacket packet = parse(
+                // _ipp._tcp.local at offset 12
+                4, '_', 'i', 'p', 'p', 4, '_', 't', 'c', 'p', 5, 'l', 'o', 'c', 'a', 'l', 0,
+                0x00, 0x0C, 0x00, 0x01, 0x00, 0x00, 0x00, 0x78, 0x00, 0x05,
+                // HP, then a pointer to offset 12
+                2, 'H', 'P', 0xC0, 0x0C);
+        DnsPacket.Ptr ptr = (DnsPacket.Ptr) packet.getAnswers()[0];
+
+        assertEquals("_ipp._tcp.local", ptr.getName().toString());
+        assertEquals("HP._ipp._tcp.local", ptr.getPointedName().toString());
+        assertEquals(120, ptr.getTtl());
+    }
+
+    public void testRejectsShortHeader() {
+        assertInvalid(new byte[] {0x00, 0x00, (byte) 0x84, 0x00, 0x00}, "insufficient data");
+    }
+
+    public void testRejectsCountsBeyondPacket() {
+        byte[] data = HEADER.clone();
+
+        data[7] = (byte) 0xFF;
+        assertInvalid(data, "record counts");
+    }
+
+    public void testRejectsPointerToItself() {
+        assertInvalid(record(0xC0, 0x0C), "pointer");
+    }
+
+    public void testRejectsForwardPointer() {
+        // Pointers must go backwards, so that they cannot loop.
+        assertInvalid(record(0xC0, 0x0E), "pointer");
+    }
+
+    public void testRejectsLabelBeyondPacket() {
+        assertInvalid(record(40, 'a', 0), "insufficient data");
+    }
+
+    public void testRejectsReservedLabelType() {
+        assertInvalid(record(0x40, 'a', 0), "label type");
+    }
+
+    public void testRejectsNameLongerThan255Bytes() {
+        int[] name = new int[5 * 61 + 1];
+
+        for (int i = 0; i < 5; i++) {
+            name[i * 61] = 60;
+        }
+        assertInvalid(record(name), "longer than 255");
+    }
+
+    public void testRejectsLongPointerChain() {
+        int nPointers = 40;
+        int[] body = new int[13 + (2 * nPointers) + 12];
+        int offset = 0;
+
+        // A NULL record named "a", whose data is a chain of pointers, each
+        // one to the previous one.
+        for (int value : new int[] {1, 'a', 0, 0x00, 0x0A, 0x00, 0x01, 0x00, 0x00, 0x00, 0x78,
+                0x00, 2 * nPointers}) {
+            body[offset++] = value;
+        }
+        for (int i = 0; i < nPointers; i++) {
+            int target = (i == 0) ? 12 : (12 + offset - 2);
+
+            body[offset++] = 0xC0 | (target >> 8);
+            body[offset++] = target & 0xFF;
+        }
+        // An A record named by the end of the chain.
+        int last = 12 + offset - 2;
+
+        for (int value : new int[] {0xC0 | (last >> 8), last & 0xFF, 0x00, 0x01, 0x00, 0x01,
+                0x00, 0x00, 0x00, 0x78, 0x00, 0x00}) {
+            body[offset++] = value;
+        }
+        byte[] data = message(body);
+
+        data[7] = 2;
+        assertInvalid(data, "chained pointers");
+    }
+
+    public void testVisitorStopsParsing() throws DnsException {
+        final int[] records = new int[1];
+
+        new DnsParser().parse(ByteBuffer.wrap(record(0xC0, 0x0C)), new DnsVisitor() {
+            @Override
+            public Action onHeader(int id, int flags, int nQuestions, int nAnswers,
+                    int nAuthorities, int nAdditionals) {
+                return Action.STOP;
+            }
+
+            @Override
+            public Action onQuestion(DnsRecordView question) {
+                fail();
+                return Action.STOP;
+            }
+
+            @Override
+            public Action onRecord(Section section, DnsRecordView record) {
+                records[0]++;
+                return Action.STOP;
+            }
+        });
+        // The invalid name of the answer is never read.
+        assertEquals(0, records[0]);
+    }
+
+    private static DnsPacket parse(int... body) throws DnsException {
+        return new DnsParser().parse(ByteBuffer.wrap(message(body)));
+    }
+
+    /*
+     * A message whose answer has the given name, and type A without data.
+     */
+    private static byte[] record(int... name) {
+        int[] body = new int[name.length + 10];
+
+        System.arraycopy(name, 0, body, 0, name.length);
+        System.arraycopy(new int[] {0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x78, 0x00, 0x00},
+                0, body, name.length, 10);
+        return message(body);
+    }
+
+    private static byte[] message(int... body) {
+        byte[] data = new byte[HEADER.length + body.length];
+
+        System.arraycopy(HEADER, 0, data, 0, HEADER.length);
+        for (int i = 0; i < body.length; i++) {
+            data[HEADER.length + i] = (byte) body[i];
+        }
+        return data;
+    }
+
+    private static void assertInvalid(byte[] data, String reason) {
+        try {
+            new DnsParser().parse(ByteBuffer.wrap(data));
+            fail("Parsed an invalid message");
+        } catch (DnsException exc) {
+            assertTrue(exc.getMessage(), exc.getMessage().contains(reason));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DnsQueryWriterTest extends TestCase {
+    private static final int MAX_PACKET_SIZE = 512;
+
+    public void testWritesOnePacketWhenAllFits() throws DnsException {
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_PACKET_SIZE);
+
+        writer.addQuestion("_ipp._tcp.local", DnsPacket.ResourceType.PTR);
+        writer.addKnownAnswer(ptr("_ipp._tcp.local", "Printer._ipp._tcp.local"), 3600);
+        List<byte[]> packets = writer.build();
+
+        assertEquals(1, packets.size());
+        DnsPacket packet = parse(packets.get(0));
+
+        assertFalse(packet.isTruncated());
+        assertEquals(1, packet.getQuestions().length);
+        assertEquals("_ipp._tcp.local", packet.getQuestions()[0].getName().toString());
+        assertEquals(1, packet.getAnswers().length);
+        assertEquals(3600, packet.getAnswers()[0].getTtl());
+    }
+
+    public void testSplitsKnownAnswersWithTcBit() throws DnsException {
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_PACKET_SIZE);
+        int nAnswers = 100;
+
+        writer.addQuestion("_ipp._tcp.local", DnsPacket.ResourceType.PTR);
+        for (int i = 0; i < nAnswers; i++) {
+            writer.addKnownAnswer(
+                    ptr("_ipp._tcp.local", "Printer number " + i + "._ipp._tcp.local"),
+                    3600);
+        }
+        List<byte[]> packets = writer.build();
+        int written = 0;
+
+        assertTrue(packets.size() > 1);
+        for (int i = 0; i < packets.size(); i++) {
+            DnsPacket packet = parse(packets.get(i));
+            boolean last = (i == (packets.size() - 1));
+
+            assertTrue(packets.get(i).length <= MAX_PACKET_SIZE);
+            // All but the last packet tell that more known answers follow.
+            assertEquals(!last, packet.isTruncated());
+            // The questions are only asked once.
+            assertEquals((i == 0) ? 1 : 0, packet.getQuestions().length);
+            for (DnsPacket.Entry answer : packet.getAnswers()) {
+                assertEquals("Printer number " + written + "._ipp._tcp.local",
+                        ((DnsPacket.Ptr) answer).getPointedName().toString());
+                written++;
+            }
+        }
+        assertEquals(nAnswers, written);
+    }
+
+    public void testCompressesNames() throws DnsException {
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_PACKET_SIZE);
+
+        writer.addQuestion("_ipp._tcp.local", DnsPacket.ResourceType.PTR);
+        writer.addKnownAnswer(ptr("_ipp._tcp.local", "A._ipp._tcp.local"), 3600);
+        writer.addKnownAnswer(ptr("_ipp._tcp.local", "B._ipp._tcp.local"), 3600);
+        byte[] data = writer.build().get(0);
+
+        // Header, the question name (17 bytes) and its type and class, then
+        // each answer: a pointer to the question name, type, class, TTL and
+        // data length, and the data: label A and a pointer to the question.
+        assertEquals(12 + (17 + 4) + 2 * (2 + 10 + (2 + 2)), data.length);
+        DnsPacket packet = parse(data);
+
+        assertEquals("A._ipp._tcp.local",
+                ((DnsPacket.Ptr) packet.getAnswers()[0]).getPointedName().toString());
+        assertEquals("B._ipp._tcp.local",
+                ((DnsPacket.Ptr) packet.getAnswers()[1]).getPointedName().toString());
+    }
+
+    public void testRejectsInvalidLabel() {
+        DnsQueryWriter writer = new DnsQueryWriter(MAX_PACKET_SIZE);
+
+        writer.addQuestion("_ipp.._tcp.local", DnsPacket.ResourceType.PTR);
+        try {
+            writer.build();
+            fail("Wrote an empty label");
+        } catch (DnsException exc) {
+            // Expected.
+        }
+    }
+
+    private static DnsPacket parse(byte[] data) throws DnsException {
+        return new DnsParser().parse(ByteBuffer.wrap(data));
+    }
+
+    private static DnsPacket.Ptr ptr(String name, String pointedName) {
+        return new DnsPacket.Ptr(name(name), DnsPacket.ResourceType.PTR, 1, 3600,
+                name(pointedName));
+    }
+
+    private static DnsPacket.Name name(String name) {
+        String[] labels = name.split("\\.");
+        DnsPacket.NameSection[] sections = new DnsPacket.NameSection[labels.length + 1];
+
+        for (int i = 0; i < labels.length; i++) {
+            sections[i] = new DnsPacket.NameLabel(labels[i]);
+        }
+        sections[labels.length] = new DnsPacket.NameLabel("");
+        return new DnsPacket.CompressedName(sections);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ServiceTypeMatcherTest extends TestCase {
+    private final ServiceTypeMatcher matcher = new ServiceTypeMatcher(ServiceType.IPP,
+            new ServiceType("_universal._sub._ipps._tcp"));
+
+    public void testMatchesServiceInstances() {
+        assertEquals(ServiceType.IPP, this.matcher.match(name("Printer._ipp._tcp.local")));
+        assertEquals(ServiceType.IPP, this.matcher.match(name("Printer._IPP._TCP.LOCAL")));
+        // Subtypes match the instances of their type.
+        assertEquals(ServiceType.IPPS, this.matcher.match(name("Printer._ipps._tcp.local")));
+    }
+
+    public void testRejectsOtherNames() {
+        assertNull(this.matcher.match(name("_ipp._tcp.local")));
+        assertNull(this.matcher.match(name("Printer._pdl-datastream._tcp.local")));
+        // An instance label containing a service type does not match.
+        assertNull(this.matcher.match(name("a.Printer._ipp._tcp.local")));
+    }
+
+    public void testPrefiltersRawAnswers() throws DnsException {
+        assertTrue(this.matcher.matchesAnyAnswer(
+                query("_ipp._tcp.local", "Printer._ipp._tcp.local")));
+        assertTrue(this.matcher.matchesAnyAnswer(
+                query("_IPPS._tcp.local", "Printer._ipps._tcp.local")));
+        assertFalse(this.matcher.matchesAnyAnswer(
+                query("_airplay._tcp.local", "TV._airplay._tcp.local")));
+    }
+
+    public void testPrefilterRejectsMalformedMessages() {
+        assertFalse(this.matcher.matchesAnyAnswer(ByteBuffer.wrap(new byte[] {0, 0, (byte) 0x84})));
+        // One answer announced, whose name is a pointer to itself.
+        assertFalse(this.matcher.matchesAnyAnswer(ByteBuffer.wrap(new byte[] {
+                0, 0, (byte) 0x84, 0, 0, 0, 0, 1, 0, 0, 0, 0, (byte) 0xC0, 12
+        })));
+    }
+
+    public void testEncodesLabelsAsUtf8() throws DnsException {
+        ServiceTypeMatcher matcher = new ServiceTypeMatcher(new ServiceType("_imprim\u00e9._tcp"));
+
+        assertTrue(matcher.matchesAnyAnswer(
+                query("_imprim\u00e9._tcp.local", "X._imprim\u00e9._tcp.local")));
+    }
+
+    /*
+     * A message whose only answer is a PTR record, written the way the
+     * querier writes its known answers.
+     */
+    private static ByteBuffer query(String name, String pointedName) throws DnsException {
+        DnsQueryWriter writer = new DnsQueryWriter(512);
+
+        writer.addKnownAnswer(new DnsPacket.Ptr(name(name), DnsPacket.ResourceType.PTR, 1, 120,
+                name(pointedName)), 120);
+        List<byte[]> packets = writer.build();
+
+        return ByteBuffer.wrap(packets.get(0));
+    }
+
+    private static DnsPacket.Name name(String name) {
+        String[] labels = name.split("\\.");
+        DnsPacket.NameSection[] sections = new DnsPacket.NameSection[labels.length + 1];
+
+        for (int i = 0; i < labels.length; i++) {
+            sections[i] = new DnsPacket.NameLabel(labels[i]);
+        }
+        sections[labels.length] = new DnsPacket.NameLabel("");
+        return new DnsPacket.CompressedName(sections);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase {
+    private static final int SLOTS = 8;
+    private static final long TICK = 100;
+
+    private TimerWheel<String> wheel;
+    private final ArrayList<String> expired = new ArrayList<String>();
+    private final TimerWheel.Listener<String> listener = new TimerWheel.Listener<String>() {
+        @Override
+        public void onExpired(String item) {
+            expired.add(item);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.wheel = new TimerWheel<String>(SLOTS, TICK, 0);
+    }
+
+    public void testExpiresAtDeadlineRoundedUpToTick() {
+        this.wheel.schedule("a", 250);
+        this.wheel.advance(299, this.listener);
+        assertTrue(this.expired.isEmpty());
+        this.wheel.advance(300, this.listener);
+        assertEquals(1, this.expired.size());
+        assertEquals("a", this.expired.get(0));
+    }
+
+    public void testExpiresOnlyOnce() {
+        this.wheel.schedule("a", 100);
+        this.wheel.advance(100, this.listener);
+        this.wheel.advance(100 + (2 * SLOTS * TICK), this.listener);
+        assertEquals(1, this.expired.size());
+    }
+
+    public void testCancelledTimerDoesNotExpire() {
+        TimerWheel.Timer<String> timer = this.wheel.schedule("a", 200);
+
+        this.wheel.cancel(timer);
+        // Cancelling again is harmless.
+        this.wheel.cancel(timer);
+        this.wheel.advance(1000, this.listener);
+        assertTrue(this.expired.isEmpty());
+    }
+
+    public void testTimerBeyondOneRevolutionWaitsForItsTick() {
+        // Same slot as tick 2, one revolution later.
+        this.wheel.schedule("a", (SLOTS + 2) * TICK);
+        this.wheel.advance(2 * TICK, this.listener);
+        assertTrue(this.expired.isEmpty());
+        this.wheel.advance(((SLOTS + 2) * TICK) - 1, this.listener);
+        assertTrue(this.expired.isEmpty());
+        this.wheel.advance((SLOTS + 2) * TICK, this.listener);
+        assertEquals(1, this.expired.size());
+    }
+
+    public void testJumpOverWholeRevolutions() {
+        this.wheel.schedule("a", 150);
+        this.wheel.schedule("b", 50 * TICK);
+        this.wheel.advance(20 * TICK, this.listener);
+        assertEquals(1, this.expired.size());
+        assertEquals("a", this.expired.get(0));
+        this.wheel.advance(50 * TICK, this.listener);
+        assertEquals(2, this.expired.size());
+        assertEquals("b", this.expired.get(1));
+    }
+
+    public void testPastDeadlineExpiresOnNextTick() {
+        this.wheel.advance(500, this.listener);
+        this.wheel.schedule("a", 100);
+        this.wheel.advance(599, this.listener);
+        assertTrue(this.expired.isEmpty());
+        this.wheel.advance(600, this.listener);
+        assertEquals(1, this.expired.size());
+    }
+
+    public void testListenerMayCancelOtherTimers() {
+        this.wheel.schedule("first", 100);
+        final TimerWheel.Timer<String> second = this.wheel.schedule("second", 100);
+
+        this.wheel.advance(100, new TimerWheel.Listener<String>() {
+            @Override
+            public void onExpired(String item) {
+                expired.add(item);
+                wheel.cancel(second);
+            }
+        });
+        assertEquals(1, this.expired.size());
+        assertEquals("first", this.expired.get(0));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+(c) Copyright 2013 Hewlett-Packard Development Company, L.P.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.android.printplugin.discoveryservice.parsers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+public class TxtRecordTest extends TestCase {
+    private static final TxtRecord.Key PDL = new TxtRecord.Key("pdl");
+
+    public void testFindsKeysIgnoringCase() throws UnsupportedEncodingException {
+        TxtRecord record = txt("txtvers=1", "PDL=application/pdf", "Color=T");
+
+        assertTrue(record.containsKey(PDL));
+        assertEquals("application/pdf", record.getString(PDL));
+        assertEquals("T", record.getString("color"));
+        assertEquals(3, record.getAttributeCount());
+    }
+
+    public void testFirstOccurrenceWins() throws UnsupportedEncodingException {
+        TxtRecord record = txt("pdl=application/pdf", "pdl=image/urf");
+
+        assertEquals("application/pdf", record.getString(PDL));
+    }
+
+    public void testKeysWithoutValue() {
+        TxtRecord record = txt("Duplex", "pdl=");
+
+        assertTrue(record.containsKey("duplex"));
+        assertNull(record.get("duplex"));
+        assertTrue(record.containsKey(PDL));
+        assertFalse(record.hasValue(PDL));
+    }
+
+    public void testMissingKey() throws UnsupportedEncodingException {
+        TxtRecord record = txt("txtvers=1");
+
+        assertFalse(record.containsKey(PDL));
+        assertNull(record.getString(PDL));
+    }
+
+    public void testIgnoresAttributeBeyondData() {
+        byte[] data = {9, 't', 'x', 't', 'v', 'e', 'r', 's', '=', '1', 20, 'p', 'd', 'l'};
+        TxtRecord record = new TxtRecord(data);
+
+        assertTrue(record.containsKey("txtvers"));
+        assertFalse(record.containsKey(PDL));
+    }
+
+    private static TxtRecord txt(String... attributes) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        for (String attribute : attributes) {
+            byte[] bytes = attribute.getBytes();
+
+            data.write(bytes.length);
+            data.write(bytes, 0, bytes.length);
+        }
+        return new TxtRecord(data.toByteArray());
+    }
+}